@@ -1,6 +1,7 @@
 package com.example.protegotinyever;
 
 import android.app.Application;
+import com.example.protegotinyever.util.CryptoCalibration;
 import com.example.protegotinyever.util.ThemeManager;
 
 public class ProtegoTinyEverApp extends Application {
@@ -9,5 +10,7 @@ public class ProtegoTinyEverApp extends Application {
         super.onCreate();
         // Initialize theme
         ThemeManager.getInstance(this).initializeTheme();
+        // Pick this device's fastest cipher; messages use the defaults until it is done
+        new Thread(() -> CryptoCalibration.applyOrCalibrate(this), "CryptoCalibration").start();
     }
 } 
\ No newline at end of file
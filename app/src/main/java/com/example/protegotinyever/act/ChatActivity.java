@@ -28,7 +28,6 @@ import com.example.protegotinyever.webrtc.WebRTCClient;
 import org.webrtc.DataChannel;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -50,9 +49,6 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
     private Dialog progressDialog;
     private ProgressBar progressBar;
     private TextView progressText;
-    private List<String> messageQueue = new ArrayList<>();
-    private boolean isFileTransferInProgress = false;
-    private ExecutorService messageQueueExecutor = Executors.newSingleThreadExecutor();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -131,6 +127,11 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
         progressDialog = new Dialog(this, R.style.TransparentDialog);
         progressDialog.setContentView(R.layout.dialog_progress);
         progressDialog.setCancelable(false);
+        // Keep the chat usable while a file is moving
+        if (progressDialog.getWindow() != null) {
+            progressDialog.getWindow().addFlags(android.view.WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL
+                    | android.view.WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE);
+        }
         progressBar = progressDialog.findViewById(R.id.progressBar);
         progressText = progressDialog.findViewById(R.id.progressText);
         progressBar.setMax(100);
@@ -239,44 +240,19 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
     private void sendMessage() {
         String messageText = messageInput.getText().toString().trim();
         if (!messageText.isEmpty()) {
-            if (isFileTransferInProgress) {
-                // Queue the message if file transfer is in progress
-                messageQueue.add(messageText);
-                messageInput.setText("");
-                Toast.makeText(this, "Message will be sent after file transfer completes", Toast.LENGTH_SHORT).show();
-            } else {
-                // Send message immediately if no file transfer is in progress
-                Log.d("ChatActivity", "Sending message to " + peerUsername + ": " + messageText);
-                webRTCClient.sendEncryptedMessage(messageText, peerUsername);
-                messageInput.setText("");
-                addMessageToUI(new MessageModel(currentUser, messageText, System.currentTimeMillis()));
-
-                DataChannel channel = dataChannelHandler.getDataChannel(peerUsername);
-                if (channel == null || channel.state() != DataChannel.State.OPEN) {
-                    showOfflineMessageIndicator();
-                }
+            // Text is sent right away; the client's scheduler puts it ahead of file chunks
+            Log.d("ChatActivity", "Sending message to " + peerUsername + ": " + messageText);
+            webRTCClient.sendEncryptedMessage(messageText, peerUsername);
+            messageInput.setText("");
+            addMessageToUI(new MessageModel(currentUser, messageText, System.currentTimeMillis()));
+
+            DataChannel channel = dataChannelHandler.getDataChannel(peerUsername);
+            if (channel == null || channel.state() != DataChannel.State.OPEN) {
+                showOfflineMessageIndicator();
             }
         }
     }
 
-    private void processMessageQueue() {
-        if (!messageQueue.isEmpty() && !isFileTransferInProgress) {
-            messageQueueExecutor.execute(() -> {
-                while (!messageQueue.isEmpty() && !isFileTransferInProgress) {
-                    String message = messageQueue.remove(0);
-                    webRTCClient.sendEncryptedMessage(message, peerUsername);
-                    runOnUiThread(() -> addMessageToUI(new MessageModel(currentUser, message, System.currentTimeMillis())));
-                    try {
-                        Thread.sleep(100); // Small delay between messages
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
-            });
-        }
-    }
-
     private void showOfflineMessageIndicator() {
         Toast.makeText(this, "Message will be delivered when peer comes online", Toast.LENGTH_SHORT).show();
     }
@@ -317,7 +293,6 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        messageQueueExecutor.shutdown();
         if (dataChannelHandler != null) {
             dataChannelHandler.setOnMessageReceivedListener(null);
             dataChannelHandler.setStateChangeListener(null);
@@ -332,7 +307,9 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
     }
 
     private void pickFile() {
-        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        // OPEN_DOCUMENT grants can be persisted, so queued transfers survive a restart
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType("*/*");
         startActivityForResult(intent, FILE_PICKER_REQUEST_CODE);
     }
@@ -342,6 +319,11 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == FILE_PICKER_REQUEST_CODE && resultCode == RESULT_OK && data != null) {
             Uri uri = data.getData();
+            try {
+                getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.w("ChatActivity", "Could not persist read permission for " + uri + ": " + e.getMessage());
+            }
             sendFile(uri);
         }
     }
@@ -352,11 +334,6 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
             String fileType = getContentResolver().getType(fileUri);
             if (fileType == null) fileType = "application/octet-stream";
 
-            long fileSize = getContentResolver().openFileDescriptor(fileUri, "r").getStatSize();
-            if (fileSize > 1024 * 1024 * 1024) { // 1 GB limit
-                throw new IOException("File size exceeds 1 GB limit: " + (fileSize / (1024 * 1024)) + " MB");
-            }
-
             // Show progress dialog immediately
             progressDialog.show();
             progressBar.setProgress(0);
@@ -457,7 +434,6 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
     @Override
     public void onProgress(String operation, int progress, String fileName) {
         runOnUiThread(() -> {
-            isFileTransferInProgress = progress < 100;
             if (progress == 0) {
                 progressDialog.show();
             }
@@ -466,8 +442,6 @@ public class ChatActivity extends AppCompatActivity implements WebRTCClient.Prog
             
             if (progress >= 100) {
                 progressDialog.dismiss();
-                // Process queued messages after file transfer completes
-                processMessageQueue();
             }
         });
     }
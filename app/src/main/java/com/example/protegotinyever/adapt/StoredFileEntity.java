@@ -0,0 +1,83 @@
+package com.example.protegotinyever.adapt;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+// One received file per distinct content; later transfers of the same content link here.
+@Entity(tableName = "stored_files")
+public class StoredFileEntity {
+    @PrimaryKey
+    @NonNull
+    private String contentHash = ""; // Hex Merkle root of the file
+    private String uri;
+    private String path;
+    private String fileName;
+    private long fileSize;
+    private long createdAt;
+
+    @Ignore
+    public StoredFileEntity() {
+        // Required empty constructor for Room
+    }
+
+    public StoredFileEntity(@NonNull String contentHash, String uri, String path, String fileName,
+                            long fileSize, long createdAt) {
+        this.contentHash = contentHash;
+        this.uri = uri;
+        this.path = path;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.createdAt = createdAt;
+    }
+
+    @NonNull
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(@NonNull String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.protegotinyever.adapt;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+@Entity(tableName = "transfers")
+public class TransferEntity {
+    public static final String DIRECTION_OUTGOING = "out";
+    public static final String DIRECTION_INCOMING = "in";
+
+    @PrimaryKey
+    @NonNull
+    private String transferId = "";
+    private String direction;
+    private String peerUsername;
+    // Source content URI when sending, partial file path when receiving
+    private String uri;
+    private String fileName;
+    private String fileType;
+    private long fileSize;
+    private byte[] chunkBitmap;
+    // Incoming: root the stored chunks were verified against; a resume under another root
+    // starts over. Outgoing: root of the source as last hashed
+    private byte[] merkleRoot;
+    // Outgoing: MerkleTree group roots of the source, valid while its size and
+    // modification time (sourceModified, in nanoseconds) are unchanged
+    private byte[] groupRoots;
+    private long sourceModified;
+    private long createdAt;
+    private long updatedAt;
+
+    @Ignore
+    public TransferEntity() {
+        // Required empty constructor for Room
+    }
+
+    public TransferEntity(@NonNull String transferId, String direction, String peerUsername, String uri,
+                          String fileName, String fileType, long fileSize, byte[] chunkBitmap,
+                          byte[] merkleRoot, long createdAt, long updatedAt) {
+        this.transferId = transferId;
+        this.direction = direction;
+        this.peerUsername = peerUsername;
+        this.uri = uri;
+        this.fileName = fileName;
+        this.fileType = fileType;
+        this.fileSize = fileSize;
+        this.chunkBitmap = chunkBitmap;
+        this.merkleRoot = merkleRoot;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+    }
+
+    @NonNull
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public void setTransferId(@NonNull String transferId) {
+        this.transferId = transferId;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public void setDirection(String direction) {
+        this.direction = direction;
+    }
+
+    public String getPeerUsername() {
+        return peerUsername;
+    }
+
+    public void setPeerUsername(String peerUsername) {
+        this.peerUsername = peerUsername;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getFileType() {
+        return fileType;
+    }
+
+    public void setFileType(String fileType) {
+        this.fileType = fileType;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public byte[] getChunkBitmap() {
+        return chunkBitmap;
+    }
+
+    public void setChunkBitmap(byte[] chunkBitmap) {
+        this.chunkBitmap = chunkBitmap;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public void setMerkleRoot(byte[] merkleRoot) {
+        this.merkleRoot = merkleRoot;
+    }
+
+    public byte[] getGroupRoots() {
+        return groupRoots;
+    }
+
+    public void setGroupRoots(byte[] groupRoots) {
+        this.groupRoots = groupRoots;
+    }
+
+    public long getSourceModified() {
+        return sourceModified;
+    }
+
+    public void setSourceModified(long sourceModified) {
+        this.sourceModified = sourceModified;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
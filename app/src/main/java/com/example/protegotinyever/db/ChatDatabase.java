@@ -1,27 +1,68 @@
 package com.example.protegotinyever.db;
 
 import android.content.Context;
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.example.protegotinyever.adapt.MessageEntity;
+import com.example.protegotinyever.adapt.StoredFileEntity;
+import com.example.protegotinyever.adapt.TransferEntity;
 
-@Database(entities = {MessageEntity.class}, version = 1, exportSchema = false)
+@Database(entities = {MessageEntity.class, TransferEntity.class, StoredFileEntity.class}, version = 5, exportSchema = false)
 public abstract class ChatDatabase extends RoomDatabase {
     private static final String DATABASE_NAME = "chat_db";
     private static ChatDatabase instance;
     private int rea = 1;
 
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `transfers` (`transferId` TEXT NOT NULL, `direction` TEXT, "
+                    + "`peerUsername` TEXT, `uri` TEXT, `fileName` TEXT, `fileType` TEXT, `fileSize` INTEGER NOT NULL, "
+                    + "`chunkBitmap` BLOB, `createdAt` INTEGER NOT NULL, `updatedAt` INTEGER NOT NULL, PRIMARY KEY(`transferId`))");
+        }
+    };
+
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `transfers` ADD COLUMN `merkleRoot` BLOB");
+        }
+    };
+
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `stored_files` (`contentHash` TEXT NOT NULL, `uri` TEXT, `path` TEXT, "
+                    + "`fileName` TEXT, `fileSize` INTEGER NOT NULL, `createdAt` INTEGER NOT NULL, PRIMARY KEY(`contentHash`))");
+        }
+    };
+
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `transfers` ADD COLUMN `groupRoots` BLOB");
+            database.execSQL("ALTER TABLE `transfers` ADD COLUMN `sourceModified` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
     public abstract MessageDao messageDao();
 
+    public abstract TransferDao transferDao();
+
+    public abstract StoredFileDao storedFileDao();
+
     public static synchronized ChatDatabase getInstance(Context context) {
         if (instance == null) {
             instance = Room.databaseBuilder(
                 context.getApplicationContext(),
                 ChatDatabase.class,
                 DATABASE_NAME
-            ).build();
+            ).addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5).build();
         }
         return instance;
     }
@@ -0,0 +1,20 @@
+package com.example.protegotinyever.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import com.example.protegotinyever.adapt.StoredFileEntity;
+
+@Dao
+public interface StoredFileDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(StoredFileEntity storedFile);
+
+    @Query("SELECT * FROM stored_files WHERE contentHash = :contentHash")
+    StoredFileEntity getStoredFile(String contentHash);
+
+    @Query("DELETE FROM stored_files WHERE contentHash = :contentHash")
+    void deleteStoredFile(String contentHash);
+}
@@ -0,0 +1,35 @@
+package com.example.protegotinyever.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import com.example.protegotinyever.adapt.TransferEntity;
+
+import java.util.List;
+
+@Dao
+public interface TransferDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(TransferEntity transfer);
+
+    @Query("SELECT * FROM transfers WHERE transferId = :transferId")
+    TransferEntity getTransfer(String transferId);
+
+    @Query("SELECT * FROM transfers WHERE peerUsername = :peerUsername AND direction = :direction ORDER BY createdAt ASC")
+    List<TransferEntity> getTransfersForPeer(String peerUsername, String direction);
+
+    @Query("UPDATE transfers SET chunkBitmap = :chunkBitmap, updatedAt = :updatedAt WHERE transferId = :transferId")
+    void updateProgress(String transferId, byte[] chunkBitmap, long updatedAt);
+
+    @Query("UPDATE transfers SET chunkBitmap = NULL, merkleRoot = :merkleRoot, updatedAt = :updatedAt WHERE transferId = :transferId")
+    void resetProgress(String transferId, byte[] merkleRoot, long updatedAt);
+
+    @Query("UPDATE transfers SET merkleRoot = :merkleRoot, groupRoots = :groupRoots, sourceModified = :sourceModified, "
+            + "updatedAt = :updatedAt WHERE transferId = :transferId")
+    void updateSourceHashes(String transferId, byte[] merkleRoot, byte[] groupRoots, long sourceModified, long updatedAt);
+
+    @Query("DELETE FROM transfers WHERE transferId = :transferId")
+    void deleteTransfer(String transferId);
+}
@@ -0,0 +1,172 @@
+package com.example.protegotinyever.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Picks the cipher and implementation MessageEncryptor uses on this device. Every JCA
+// provider that offers AES-GCM or ChaCha20-Poly1305, and the bundled Bouncy Castle
+// engines, seal and open a chunk-sized sample for a short while; the fastest of each
+// cipher runs it, and the faster cipher seals everything new. The choice is measured
+// once per OS build, since an update can change the providers, and kept in preferences
+// with the measurements for diagnostics.
+public class CryptoCalibration {
+    private static final String PREFS_NAME = "CryptoPrefs";
+    private static final String KEY_BUILD = "calibrated_build";
+    private static final String KEY_PREFERRED_CIPHER = "preferred_cipher";
+    private static final String KEY_AES_GCM_PROVIDER = "aes_gcm_provider";
+    private static final String KEY_CHACHA_PROVIDER = "chacha_provider";
+    private static final String KEY_MEASUREMENTS = "measurements";
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final long WARMUP_NANOS = 30_000_000L;
+    private static final long MEASURE_NANOS = 100_000_000L;
+
+    public static final class Measurement {
+        public final byte cipher;
+        public final String provider;
+        public final double megabytesPerSecond; // Sealed and opened
+
+        Measurement(byte cipher, String provider, double megabytesPerSecond) {
+            this.cipher = cipher;
+            this.provider = provider;
+            this.megabytesPerSecond = megabytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            String name = cipher == MessageEncryptor.CIPHER_AES_GCM ? "AES-GCM" : "ChaCha20-Poly1305";
+            return String.format(Locale.ROOT, "%s/%s: %.1f MB/s", name, provider, megabytesPerSecond);
+        }
+    }
+
+    private CryptoCalibration() {}
+
+    // Applies the stored choice, measuring first when this OS build has not been measured.
+    // Takes up to a second the first time; call it off the main thread.
+    public static void applyOrCalibrate(Context context) {
+        SharedPreferences prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (Build.FINGERPRINT.equals(prefs.getString(KEY_BUILD, null))) {
+            try {
+                MessageEncryptor.select((byte) prefs.getInt(KEY_PREFERRED_CIPHER, 0),
+                        prefs.getString(KEY_AES_GCM_PROVIDER, null), prefs.getString(KEY_CHACHA_PROVIDER, null));
+                return;
+            } catch (IllegalArgumentException e) {
+                Log.w("CryptoCalibration", "Stored cipher choice is invalid, measuring again");
+            }
+        }
+
+        List<Measurement> measurements = measure();
+        Measurement aesGcm = fastest(measurements, MessageEncryptor.CIPHER_AES_GCM);
+        Measurement chacha = fastest(measurements, MessageEncryptor.CIPHER_CHACHA20_POLY1305);
+        if (aesGcm == null || chacha == null) {
+            Log.w("CryptoCalibration", "No working implementation of both ciphers, keeping the defaults: " + measurements);
+            return;
+        }
+        Measurement winner = aesGcm.megabytesPerSecond >= chacha.megabytesPerSecond ? aesGcm : chacha;
+        MessageEncryptor.select(winner.cipher, aesGcm.provider, chacha.provider);
+
+        StringBuilder report = new StringBuilder();
+        for (Measurement measurement : measurements) {
+            report.append(measurement).append('\n');
+        }
+        prefs.edit()
+                .putString(KEY_BUILD, Build.FINGERPRINT)
+                .putInt(KEY_PREFERRED_CIPHER, winner.cipher)
+                .putString(KEY_AES_GCM_PROVIDER, aesGcm.provider)
+                .putString(KEY_CHACHA_PROVIDER, chacha.provider)
+                .putString(KEY_MEASUREMENTS, report.toString())
+                .apply();
+        Log.i("CryptoCalibration", "Selected " + winner + "\n" + report);
+    }
+
+    // One line per implementation measured on the last calibration.
+    public static String getMeasurements(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_MEASUREMENTS, "");
+    }
+
+    // Every implementation that round-trips the sample correctly, in no particular order.
+    public static List<Measurement> measure() {
+        List<String> providers = new ArrayList<>();
+        providers.add(MessageEncryptor.PROVIDER_BOUNCY_CASTLE);
+        for (Provider provider : Security.getProviders()) {
+            providers.add(provider.getName());
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        MessageEncryptor.RANDOM.nextBytes(sample);
+        List<Measurement> measurements = new ArrayList<>();
+        for (byte cipher : new byte[] {MessageEncryptor.CIPHER_AES_GCM, MessageEncryptor.CIPHER_CHACHA20_POLY1305}) {
+            for (String provider : providers) {
+                try {
+                    double rate = measure(new MessageEncryptor.Engine(cipher, provider), cipher, sample);
+                    if (rate > 0) {
+                        measurements.add(new Measurement(cipher, provider, rate));
+                    }
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    // Not offered by this provider, or only for its own keys (Android Keystore)
+                }
+            }
+        }
+        return measurements;
+    }
+
+    // Megabytes per second sealed then opened in place, or 0 if the round trip is wrong.
+    private static double measure(MessageEncryptor.Engine engine, byte cipher, byte[] sample) throws GeneralSecurityException {
+        byte[] key = new byte[32];
+        MessageEncryptor.RANDOM.nextBytes(key);
+        MessageEncryptor.Aead aead = new MessageEncryptor.Aead(cipher, key);
+        byte[] buffer = new byte[SAMPLE_SIZE + MessageEncryptor.TAG_LENGTH];
+        byte[] nonce = new byte[12];
+        long counter = 0;
+
+        System.arraycopy(sample, 0, buffer, 0, SAMPLE_SIZE);
+        int sealed = engine.seal(aead, nextNonce(nonce, counter++), buffer, 0, SAMPLE_SIZE, buffer, 0);
+        if (engine.open(aead, nonce, buffer, 0, sealed, buffer, 0) != SAMPLE_SIZE
+                || !Arrays.equals(sample, Arrays.copyOf(buffer, SAMPLE_SIZE))) {
+            return 0;
+        }
+
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            sealed = engine.seal(aead, nextNonce(nonce, counter++), buffer, 0, SAMPLE_SIZE, buffer, 0);
+            engine.open(aead, nonce, buffer, 0, sealed, buffer, 0);
+        }
+        long bytes = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sealed = engine.seal(aead, nextNonce(nonce, counter++), buffer, 0, SAMPLE_SIZE, buffer, 0);
+            engine.open(aead, nonce, buffer, 0, sealed, buffer, 0);
+            bytes += SAMPLE_SIZE;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        return bytes / (elapsed / 1e9) / (1024 * 1024);
+    }
+
+    // A fresh nonce per seal; JCA refuses to seal twice under the same key and nonce.
+    private static byte[] nextNonce(byte[] nonce, long counter) {
+        for (int i = 0; i < 8; i++) {
+            nonce[nonce.length - 1 - i] = (byte) (counter >>> (i * 8));
+        }
+        return nonce;
+    }
+
+    private static Measurement fastest(List<Measurement> measurements, byte cipher) {
+        Measurement fastest = null;
+        for (Measurement measurement : measurements) {
+            if (measurement.cipher == cipher && (fastest == null || measurement.megabytesPerSecond > fastest.megabytesPerSecond)) {
+                fastest = measurement;
+            }
+        }
+        return fastest;
+    }
+}
@@ -63,6 +63,11 @@ public class DataChannelHandler {
         }
 
         if (dataChannel != null) {
+            // Control and bulk channels carry no chat text and are handled by WebRTCClient
+            if (!WebRTCClient.CHAT_CHANNEL.equals(dataChannel.label())) {
+                Log.d("WebRTC", "Ignoring " + dataChannel.label() + " channel for peer: " + currentPeerUsername);
+                return;
+            }
             Log.d("WebRTC", "Setting DataChannel for peer: " + currentPeerUsername);
             dataChannels.put(currentPeerUsername, dataChannel);
             registerDataChannelObserver(currentPeerUsername, dataChannel);
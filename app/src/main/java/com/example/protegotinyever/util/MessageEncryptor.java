@@ -1,20 +1,58 @@
 package com.example.protegotinyever.util;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.modes.AEADCipher;
+import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.SecureRandom;
-import android.util.Log;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 
+// Payloads are sealed in one AEAD pass, AES-256-GCM or ChaCha20-Poly1305, whichever
+// CryptoCalibration measured faster on this device, from its fastest implementation.
+//
+// Envelope: magic (4, includes the format version), cipher id (1), key (32), nonce (12),
+// then ciphertext and 16-byte tag. The older format (ChaCha20 then AES-CTR, no
+// authentication) is still decrypted so peers on the previous version keep working.
 public class MessageEncryptor {
-    private static final int NONCE_LENGTH = 8; // ChaCha20 with Bouncy Castle uses 8-byte nonce
-    private static final int IV_LENGTH = 16; // AES IV
+    public static final byte CIPHER_AES_GCM = 1;
+    public static final byte CIPHER_CHACHA20_POLY1305 = 2;
+    public static final int TAG_LENGTH = 16;
     private static final int KEY_LENGTH = 32; // 256-bit keys in bytes
+    static final int AEAD_NONCE_LENGTH = 12;
+    private static final int MAGIC = 0x50544102; // "PTA" + format version 2
+    private static final int AEAD_HEADER_LENGTH = 4 + 1 + KEY_LENGTH + AEAD_NONCE_LENGTH;
+    private static final int NONCE_LENGTH = 8; // Legacy: ChaCha20 with Bouncy Castle uses 8-byte nonce
+    private static final int IV_LENGTH = 16; // Legacy: AES IV
+    private static final int LEGACY_HEADER_LENGTH = KEY_LENGTH + KEY_LENGTH + NONCE_LENGTH + IV_LENGTH;
+    // Runs a cipher on the bundled Bouncy Castle engines directly rather than through JCA
+    public static final String PROVIDER_BOUNCY_CASTLE = "BouncyCastle";
+    // Conscrypt's name, then the JDK's
+    private static final String[] CHACHA_TRANSFORMATIONS = {"ChaCha20/Poly1305/NoPadding", "ChaCha20-Poly1305"};
+    static final SecureRandom RANDOM = new SecureRandom();
+    // Until CryptoCalibration has measured the device: AES-GCM from the default JCA provider
+    // where the CPU has AES instructions, Bouncy Castle's ChaCha20-Poly1305 elsewhere.
+    private static volatile Selection selection = new Selection(
+            hasHardwareAes() ? CIPHER_AES_GCM : CIPHER_CHACHA20_POLY1305, null, PROVIDER_BOUNCY_CASTLE);
 
     public static class EncryptionResult {
         public byte[] combinedData;
@@ -24,43 +62,426 @@ public class MessageEncryptor {
         }
     }
 
-    public static EncryptionResult encryptMessage(String message, String senderEmail, String senderPhone) throws Exception {
-        byte[] messageBytes = message.getBytes("UTF-8");
-        return encryptData(messageBytes, senderEmail, senderPhone);
+    // True when /proc/cpuinfo lists the AES instructions: the ARMv8 crypto extensions on
+    // phones, AES-NI on x86 emulators and desktops.
+    public static boolean hasHardwareAes() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/cpuinfo"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("Features") && !line.startsWith("flags")) {
+                    continue;
+                }
+                for (String feature : line.substring(line.indexOf(':') + 1).trim().split("\\s+")) {
+                    if (feature.equals("aes")) {
+                        return true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // No cpuinfo to read; ChaCha20 is the safe choice
+        }
+        return false;
     }
 
-    public static EncryptionResult encryptData(byte[] data, String senderEmail, String senderPhone) throws Exception {
-        byte[] nonce = generateNonceFromUserInput(senderEmail, senderPhone);
-        byte[] iv = generateIV();
-        byte[] chachaKey = generateKey();
-        byte[] aesKey = generateKey();
+    // The cipher new messages and transfers are sealed with, and the implementation that
+    // runs each cipher: a JCA provider name, null for the JCA default, or
+    // PROVIDER_BOUNCY_CASTLE. Peers need not agree; the cipher id travels with the data.
+    private static final class Selection {
+        final byte preferredCipher;
+        final String aesGcmProvider;
+        final String chachaProvider;
 
-        Log.d("MessageEncryptor", "Encrypting data, length: " + data.length);
+        Selection(byte preferredCipher, String aesGcmProvider, String chachaProvider) {
+            this.preferredCipher = preferredCipher;
+            this.aesGcmProvider = aesGcmProvider;
+            this.chachaProvider = chachaProvider;
+        }
+    }
 
-        // ChaCha20 encryption (Bouncy Castle)
-        ChaChaEngine chachaEngine = new ChaChaEngine();
-        ParametersWithIV chachaParams = new ParametersWithIV(new KeyParameter(chachaKey), nonce);
-        chachaEngine.init(true, chachaParams);
-        byte[] chachaEncrypted = new byte[data.length];
-        chachaEngine.processBytes(data, 0, data.length, chachaEncrypted, 0);
+    public static void select(byte preferredCipher, String aesGcmProvider, String chachaProvider) {
+        if (preferredCipher != CIPHER_AES_GCM && preferredCipher != CIPHER_CHACHA20_POLY1305) {
+            throw new IllegalArgumentException("Unknown cipher: " + preferredCipher);
+        }
+        selection = new Selection(preferredCipher, aesGcmProvider, chachaProvider);
+    }
 
-        // AES-CTR encryption
-        Cipher aesCipher = Cipher.getInstance("AES/CTR/NoPadding");
-        SecretKeySpec aesKeySpec = new SecretKeySpec(aesKey, "AES");
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        aesCipher.init(Cipher.ENCRYPT_MODE, aesKeySpec, ivSpec);
-        byte[] doubleEncrypted = aesCipher.doFinal(chachaEncrypted);
+    public static byte getPreferredCipher() {
+        return selection.preferredCipher;
+    }
 
-        // Combine keys and encrypted data
-        ByteBuffer buffer = ByteBuffer.allocate(KEY_LENGTH + KEY_LENGTH + NONCE_LENGTH + IV_LENGTH + doubleEncrypted.length);
-        buffer.put(chachaKey);
-        buffer.put(aesKey);
-        buffer.put(nonce);
-        buffer.put(iv);
-        buffer.put(doubleEncrypted);
-        byte[] combinedData = buffer.array();
+    // One cipher from one implementation. Not thread-safe.
+    static final class Engine {
+        private final byte cipher;
+        private final Cipher jca;
+        private final AEADCipher bouncyCastle;
+
+        Engine(byte cipher, String provider) throws GeneralSecurityException {
+            this.cipher = cipher;
+            if (PROVIDER_BOUNCY_CASTLE.equals(provider)) {
+                jca = null;
+                bouncyCastle = cipher == CIPHER_AES_GCM ? GCMBlockCipher.newInstance(AESEngine.newInstance()) : new ChaCha20Poly1305();
+            } else if (cipher == CIPHER_AES_GCM) {
+                jca = jcaCipher("AES/GCM/NoPadding", provider);
+                bouncyCastle = null;
+            } else {
+                Cipher chacha = null;
+                GeneralSecurityException failure = null;
+                for (String transformation : CHACHA_TRANSFORMATIONS) {
+                    try {
+                        chacha = jcaCipher(transformation, provider);
+                        break;
+                    } catch (GeneralSecurityException e) {
+                        failure = e;
+                    }
+                }
+                if (chacha == null) {
+                    throw failure;
+                }
+                jca = chacha;
+                bouncyCastle = null;
+            }
+        }
+
+        private static Cipher jcaCipher(String transformation, String provider) throws GeneralSecurityException {
+            return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+        }
+
+        int seal(Aead key, byte[] nonce, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            return seal(key, nonce, null, 0, 0, in, inOffset, length, out, outOffset);
+        }
+
+        // aad is authenticated along with in but not encrypted or written.
+        int seal(Aead key, byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                 byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            if (jca != null) {
+                jca.init(Cipher.ENCRYPT_MODE, key.secretKey, parameters(nonce));
+                if (aadLength > 0) {
+                    jca.updateAAD(aad, aadOffset, aadLength);
+                }
+                return jca.doFinal(in, inOffset, length, out, outOffset);
+            }
+            bouncyCastle.init(true, new AEADParameters(key.keyParameter, TAG_LENGTH * 8, nonce));
+            if (aadLength > 0) {
+                bouncyCastle.processAADBytes(aad, aadOffset, aadLength);
+            }
+            int written = bouncyCastle.processBytes(in, inOffset, length, out, outOffset);
+            try {
+                return written + bouncyCastle.doFinal(out, outOffset + written);
+            } catch (InvalidCipherTextException e) {
+                throw new GeneralSecurityException(e);
+            }
+        }
+
+        int open(Aead key, byte[] nonce, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            return open(key, nonce, null, 0, 0, in, inOffset, length, out, outOffset);
+        }
+
+        int open(Aead key, byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                 byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            if (jca != null) {
+                try {
+                    jca.init(Cipher.DECRYPT_MODE, key.secretKey, parameters(nonce));
+                } catch (InvalidKeyException e) {
+                    // The JDK's ChaCha20 refuses the key and nonce it last had even to decrypt, but
+                    // opening a duplicate is harmless; another nonce in between clears it
+                    byte[] other = nonce.clone();
+                    other[0] ^= 1;
+                    jca.init(Cipher.DECRYPT_MODE, key.secretKey, parameters(other));
+                    jca.init(Cipher.DECRYPT_MODE, key.secretKey, parameters(nonce));
+                }
+                if (aadLength > 0) {
+                    jca.updateAAD(aad, aadOffset, aadLength);
+                }
+                try {
+                    return jca.doFinal(in, inOffset, length, out, outOffset);
+                } catch (AEADBadTagException e) {
+                    return -1;
+                }
+            }
+            bouncyCastle.init(false, new AEADParameters(key.keyParameter, TAG_LENGTH * 8, nonce));
+            if (aadLength > 0) {
+                bouncyCastle.processAADBytes(aad, aadOffset, aadLength);
+            }
+            int written = bouncyCastle.processBytes(in, inOffset, length, out, outOffset);
+            try {
+                return written + bouncyCastle.doFinal(out, outOffset + written);
+            } catch (InvalidCipherTextException e) {
+                return -1;
+            }
+        }
+
+        private AlgorithmParameterSpec parameters(byte[] nonce) {
+            return cipher == CIPHER_AES_GCM ? new GCMParameterSpec(TAG_LENGTH * 8, nonce) : new IvParameterSpec(nonce);
+        }
+    }
+
+    // Per-thread cipher state. A JCA Cipher is costly to create and no engine is
+    // thread-safe, so each thread keeps one per cipher and rekeys it on every call.
+    private static final class CipherContext {
+        final byte[] nonce = new byte[AEAD_NONCE_LENGTH];
+        byte[] scratch = new byte[0]; // Staging for buffers without a backing array
+        private Selection builtFor;
+        private Engine aesGcm;
+        private Engine chacha;
+
+        byte[] scratch(int length) {
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            return scratch;
+        }
+
+        Engine engine(byte cipher) throws GeneralSecurityException {
+            Selection current = selection;
+            if (current != builtFor) {
+                builtFor = current;
+                aesGcm = null;
+                chacha = null;
+            }
+            if (cipher == CIPHER_AES_GCM) {
+                if (aesGcm == null) {
+                    aesGcm = newEngine(cipher, current.aesGcmProvider);
+                }
+                return aesGcm;
+            }
+            if (chacha == null) {
+                chacha = newEngine(cipher, current.chachaProvider);
+            }
+            return chacha;
+        }
+
+        // A selected provider that has gone away, with an OS update say, falls back to Bouncy Castle
+        private static Engine newEngine(byte cipher, String provider) throws GeneralSecurityException {
+            try {
+                return new Engine(cipher, provider);
+            } catch (GeneralSecurityException e) {
+                return new Engine(cipher, PROVIDER_BOUNCY_CASTLE);
+            }
+        }
+    }
+
+    private static final ThreadLocal<CipherContext> contexts = ThreadLocal.withInitial(CipherContext::new);
+
+    // A raw key that can be overwritten in place; JCA providers copy it out on init.
+    private static final class RawKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+        final byte[] key = new byte[KEY_LENGTH];
+        String algorithm;
+
+        @Override
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return key.clone();
+        }
+    }
+
+    // One AEAD key in either cipher; SessionCipher seals messages with it too. Thread-safe
+    // until rekeyed; SessionCipher rekeys one per direction under its own lock, so the
+    // per-message keys of its chains cost no allocation.
+    static final class Aead {
+        private byte cipher;
+        private final RawKey secretKey = new RawKey();
+        private final KeyParameter keyParameter = new KeyParameter(new byte[KEY_LENGTH]);
+
+        Aead() {}
+
+        Aead(byte cipher, byte[] key) throws GeneralSecurityException {
+            rekey(cipher, key);
+        }
+
+        void rekey(byte cipher, byte[] key) throws GeneralSecurityException {
+            if (cipher != CIPHER_AES_GCM && cipher != CIPHER_CHACHA20_POLY1305) {
+                throw new GeneralSecurityException("Unknown cipher: " + cipher);
+            }
+            if (key.length != KEY_LENGTH) {
+                throw new GeneralSecurityException("Invalid key length: " + key.length);
+            }
+            this.cipher = cipher;
+            secretKey.algorithm = cipher == CIPHER_AES_GCM ? "AES" : "ChaCha20";
+            System.arraycopy(key, 0, secretKey.key, 0, KEY_LENGTH);
+            // getKey is the parameter's own array, which Bouncy Castle engines copy on init
+            System.arraycopy(key, 0, keyParameter.getKey(), 0, KEY_LENGTH);
+        }
+
+        // Wipes the key once its message is sealed or opened.
+        void clear() {
+            Arrays.fill(secretKey.key, (byte) 0);
+            Arrays.fill(keyParameter.getKey(), (byte) 0);
+        }
+
+        // This thread's nonce buffer, valid until its next seal or open.
+        static byte[] nonce() {
+            return contexts.get().nonce;
+        }
+
+        // Writes length + TAG_LENGTH bytes to out and returns that count. in may be out.
+        int seal(byte[] nonce, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            return contexts.get().engine(cipher).seal(this, nonce, in, inOffset, length, out, outOffset);
+        }
+
+        int seal(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                 byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            return contexts.get().engine(cipher).seal(this, nonce, aad, aadOffset, aadLength, in, inOffset, length, out, outOffset);
+        }
+
+        // Returns the plaintext length, or -1 if the tag does not match. in may be out.
+        int open(byte[] nonce, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            return open(nonce, null, 0, 0, in, inOffset, length, out, outOffset);
+        }
+
+        int open(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                 byte[] in, int inOffset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            if (length < TAG_LENGTH) {
+                return -1;
+            }
+            return contexts.get().engine(cipher).open(this, nonce, aad, aadOffset, aadLength, in, inOffset, length, out, outOffset);
+        }
+
+        // Seals the remaining bytes of in into out, advancing both. Heap buffers are worked
+        // on directly and may share memory; others pass through this thread's scratch array.
+        int seal(byte[] nonce, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+            int length = in.remaining();
+            if (out.remaining() < length + TAG_LENGTH) {
+                throw new ShortBufferException("Need " + (length + TAG_LENGTH) + " bytes, have " + out.remaining());
+            }
+            int sealed;
+            if (in.hasArray() && out.hasArray()) {
+                sealed = seal(nonce, in.array(), in.arrayOffset() + in.position(), length,
+                        out.array(), out.arrayOffset() + out.position());
+                out.position(out.position() + sealed);
+            } else {
+                byte[] buffer = contexts.get().scratch(length + TAG_LENGTH);
+                in.duplicate().get(buffer, 0, length);
+                sealed = seal(nonce, buffer, 0, length, buffer, 0);
+                out.put(buffer, 0, sealed);
+            }
+            in.position(in.limit());
+            return sealed;
+        }
+
+        // Opens the remaining bytes of in into out and returns the plaintext length, or -1
+        // with neither buffer moved if the tag does not match.
+        int open(byte[] nonce, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+            int length = in.remaining();
+            if (out.remaining() < length - TAG_LENGTH) {
+                throw new ShortBufferException("Need " + (length - TAG_LENGTH) + " bytes, have " + out.remaining());
+            }
+            int opened;
+            if (in.hasArray() && out.hasArray()) {
+                opened = open(nonce, in.array(), in.arrayOffset() + in.position(), length,
+                        out.array(), out.arrayOffset() + out.position());
+                if (opened >= 0) {
+                    out.position(out.position() + opened);
+                }
+            } else {
+                byte[] buffer = contexts.get().scratch(length);
+                in.duplicate().get(buffer, 0, length);
+                opened = open(nonce, buffer, 0, length, buffer, 0);
+                if (opened >= 0) {
+                    out.put(buffer, 0, opened);
+                }
+            }
+            if (opened >= 0) {
+                in.position(in.limit());
+            }
+            return opened;
+        }
+    }
+
+    // AEAD context for one file transfer. The key is generated once and shipped in the file
+    // metadata; each chunk is sealed under a nonce made of a per-transfer prefix and the
+    // chunk's byte offset, so no per-chunk key material travels with the data. Every
+    // position must be encrypted at most once under one key. Thread-safe.
+    public static class TransferCipher {
+        public static final int KEY_MATERIAL_LENGTH = 1 + KEY_LENGTH + 4; // Cipher id, key, nonce prefix
+
+        private final byte[] keyMaterial;
+        private final Aead aead;
+
+        private TransferCipher(byte[] keyMaterial) throws GeneralSecurityException {
+            this.keyMaterial = keyMaterial;
+            byte[] key = new byte[KEY_LENGTH];
+            System.arraycopy(keyMaterial, 1, key, 0, KEY_LENGTH);
+            this.aead = new Aead(keyMaterial[0], key);
+        }
+
+        public static TransferCipher create() throws Exception {
+            byte[] keyMaterial = new byte[KEY_MATERIAL_LENGTH];
+            RANDOM.nextBytes(keyMaterial);
+            keyMaterial[0] = getPreferredCipher();
+            return new TransferCipher(keyMaterial);
+        }
+
+        public static TransferCipher fromKeyMaterial(byte[] keyMaterial) throws Exception {
+            if (keyMaterial.length != KEY_MATERIAL_LENGTH) {
+                throw new IllegalArgumentException("Invalid transfer key material length: " + keyMaterial.length);
+            }
+            return new TransferCipher(keyMaterial.clone());
+        }
+
+        public byte[] getKeyMaterial() {
+            return keyMaterial.clone();
+        }
+
+        // Writes length + TAG_LENGTH bytes and returns that count; data may be out.
+        public int encrypt(long position, byte[] data, int offset, int length, byte[] out, int outOffset) throws Exception {
+            return aead.seal(nonceFor(position), data, offset, length, out, outOffset);
+        }
+
+        // Returns the plaintext length, or -1 if the data was not sealed at position
+        // under this key; data may be out.
+        public int decrypt(long position, byte[] data, int offset, int length, byte[] out, int outOffset) throws Exception {
+            return aead.open(nonceFor(position), data, offset, length, out, outOffset);
+        }
+
+        // As above, with the aadLength bytes of data before offset authenticated but left in
+        // the clear; compressed chunks keep their plaintext length there.
+        public int encrypt(long position, byte[] data, int aadLength, int offset, int length, byte[] out, int outOffset) throws Exception {
+            return aead.seal(nonceFor(position), data, offset - aadLength, aadLength, data, offset, length, out, outOffset);
+        }
 
-        Log.d("MessageEncryptor", "Encryption complete, combined length: " + combinedData.length);
+        public int decrypt(long position, byte[] data, int aadLength, int offset, int length, byte[] out, int outOffset) throws Exception {
+            return aead.open(nonceFor(position), data, offset - aadLength, aadLength, data, offset, length, out, outOffset);
+        }
+
+        private byte[] nonceFor(long position) {
+            byte[] nonce = Aead.nonce();
+            System.arraycopy(keyMaterial, 1 + KEY_LENGTH, nonce, 0, 4);
+            for (int i = 0; i < 8; i++) {
+                nonce[AEAD_NONCE_LENGTH - 1 - i] = (byte) (position >>> (i * 8));
+            }
+            return nonce;
+        }
+    }
+
+    public static EncryptionResult encryptMessage(String message) throws Exception {
+        byte[] messageBytes = message.getBytes("UTF-8");
+        return encryptData(messageBytes);
+    }
+
+    public static EncryptionResult encryptData(byte[] data) throws Exception {
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] nonce = Aead.nonce();
+        RANDOM.nextBytes(key);
+        RANDOM.nextBytes(nonce);
+
+        byte cipher = getPreferredCipher();
+        byte[] combinedData = new byte[AEAD_HEADER_LENGTH + data.length + TAG_LENGTH];
+        ByteBuffer buffer = ByteBuffer.wrap(combinedData);
+        buffer.putInt(MAGIC);
+        buffer.put(cipher);
+        buffer.put(key);
+        buffer.put(nonce);
+        new Aead(cipher, key).seal(nonce, data, 0, data.length, combinedData, AEAD_HEADER_LENGTH);
         return new EncryptionResult(combinedData);
     }
 
@@ -69,25 +490,48 @@ public class MessageEncryptor {
         return new String(decryptedBytes, "UTF-8");
     }
 
+    // A legacy payload starts with a random key, so it is mistaken for the current format
+    // about once in 2^39 messages (magic and a valid cipher id); such a message fails
+    // authentication instead of decrypting.
     public static byte[] decryptData(byte[] combinedData) throws Exception {
-        if (combinedData.length < KEY_LENGTH + KEY_LENGTH + NONCE_LENGTH + IV_LENGTH) {
-            Log.e("MessageEncryptor", "Invalid combined data length: " + combinedData.length);
-            throw new IllegalArgumentException("Invalid combined data length");
+        if (combinedData.length >= AEAD_HEADER_LENGTH + TAG_LENGTH && ByteBuffer.wrap(combinedData).getInt() == MAGIC
+                && (combinedData[4] == CIPHER_AES_GCM || combinedData[4] == CIPHER_CHACHA20_POLY1305)) {
+            return openData(combinedData);
+        }
+        return decryptLegacy(combinedData);
+    }
+
+    private static byte[] openData(byte[] combinedData) throws GeneralSecurityException {
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] nonce = Aead.nonce();
+        System.arraycopy(combinedData, 5, key, 0, KEY_LENGTH);
+        System.arraycopy(combinedData, 5 + KEY_LENGTH, nonce, 0, AEAD_NONCE_LENGTH);
+        int sealedLength = combinedData.length - AEAD_HEADER_LENGTH;
+        byte[] decryptedBytes = new byte[sealedLength - TAG_LENGTH];
+        int length = new Aead(combinedData[4], key).open(nonce, combinedData, AEAD_HEADER_LENGTH, sealedLength, decryptedBytes, 0);
+        if (length < 0) {
+            throw new AEADBadTagException("Message failed authentication");
         }
+        return decryptedBytes;
+    }
 
-        Log.d("MessageEncryptor", "Decrypting combined data, length: " + combinedData.length);
+    // Previous format: ChaCha20 then AES-CTR, keys in front of the ciphertext.
+    private static byte[] decryptLegacy(byte[] combinedData) throws Exception {
+        if (combinedData.length < LEGACY_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Invalid combined data length: " + combinedData.length);
+        }
 
         byte[] chachaKey = new byte[KEY_LENGTH];
         byte[] aesKey = new byte[KEY_LENGTH];
         byte[] nonce = new byte[NONCE_LENGTH];
         byte[] iv = new byte[IV_LENGTH];
-        byte[] encryptedData = new byte[combinedData.length - (KEY_LENGTH + KEY_LENGTH + NONCE_LENGTH + IV_LENGTH)];
+        byte[] encryptedData = new byte[combinedData.length - LEGACY_HEADER_LENGTH];
 
         System.arraycopy(combinedData, 0, chachaKey, 0, KEY_LENGTH);
         System.arraycopy(combinedData, KEY_LENGTH, aesKey, 0, KEY_LENGTH);
         System.arraycopy(combinedData, KEY_LENGTH * 2, nonce, 0, NONCE_LENGTH);
         System.arraycopy(combinedData, KEY_LENGTH * 2 + NONCE_LENGTH, iv, 0, IV_LENGTH);
-        System.arraycopy(combinedData, KEY_LENGTH * 2 + NONCE_LENGTH + IV_LENGTH, encryptedData, 0, encryptedData.length);
+        System.arraycopy(combinedData, LEGACY_HEADER_LENGTH, encryptedData, 0, encryptedData.length);
 
         // AES-CTR decryption
         Cipher aesCipher = Cipher.getInstance("AES/CTR/NoPadding");
@@ -102,31 +546,6 @@ public class MessageEncryptor {
         chachaEngine.init(false, chachaParams);
         byte[] decryptedBytes = new byte[chachaEncrypted.length];
         chachaEngine.processBytes(chachaEncrypted, 0, chachaEncrypted.length, decryptedBytes, 0);
-
-        Log.d("MessageEncryptor", "Decryption complete, decrypted length: " + decryptedBytes.length);
         return decryptedBytes;
     }
-
-    private static byte[] generateKey() {
-        byte[] key = new byte[KEY_LENGTH];
-        new SecureRandom().nextBytes(key);
-        return key;
-    }
-
-    private static byte[] generateNonceFromUserInput(String email, String phoneNumber) {
-        byte[] nonce = new byte[NONCE_LENGTH];
-        String emailPart = email.substring(0, Math.min(4, email.length()));
-        String phonePart = phoneNumber.substring(Math.max(0, phoneNumber.length() - 4));
-        byte[] emailBytes = emailPart.getBytes();
-        byte[] phoneBytes = phonePart.getBytes();
-        System.arraycopy(emailBytes, 0, nonce, 0, Math.min(emailBytes.length, 4));
-        System.arraycopy(phoneBytes, 0, nonce, 4, Math.min(phoneBytes.length, 4));
-        return nonce; // 8 bytes from email (4) + phone (4)
-    }
-
-    private static byte[] generateIV() {
-        byte[] iv = new byte[IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
-        return iv;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,266 @@
+package com.example.protegotinyever.util;
+
+import org.bouncycastle.crypto.agreement.X25519Agreement;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.X25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.X25519PublicKeyParameters;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keys for one connection to a peer, for its text messages and the transfer keys in
+// FILE_META. When the channels open, each side sends an ephemeral X25519 public key;
+// HKDF over the shared secret gives one chain key per direction. Every message steps
+// its direction's chain (HMAC-SHA256), so each message has its own key and an old
+// chain key cannot be recovered from a later one. A side that holds the peer's key
+// echoes it back; the session is only used once the peer has echoed our key.
+//
+// Message: magic (4, includes the format version), cipher id (1), counter (4), then
+// ciphertext and 16-byte tag. The nonce is the counter; every key seals one message.
+public class SessionCipher {
+    public static final int PUBLIC_KEY_LENGTH = X25519PublicKeyParameters.KEY_SIZE;
+    private static final int MAGIC = 0x50544103; // "PTA" + format version 3
+    private static final int HEADER_LENGTH = 4 + 1 + 4;
+    private static final int KEY_LENGTH = 32;
+    private static final int MAX_SKIP = 64; // Message keys kept for messages that arrive out of order
+    private static final byte[] INFO = "ProtegoTinyEver session v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MESSAGE_KEY_INPUT = {1};
+    private static final byte[] CHAIN_KEY_INPUT = {2};
+
+    private final byte[] publicKey;
+    private final byte[] peerPublicKey;
+    private final byte[] sendChainKey;
+    private final byte[] receiveChainKey;
+    private final Map<Integer, byte[]> skippedKeys = new LinkedHashMap<>();
+    private final byte[] messageKey = new byte[KEY_LENGTH];
+    private final byte[] nextChainKey = new byte[KEY_LENGTH];
+    private final HMac hmac = new HMac(new SHA256Digest());
+    private final KeyParameter chainKeyParameter = new KeyParameter(new byte[KEY_LENGTH]);
+    // Reused for every message in their direction, so the message path does not allocate
+    private final MessageEncryptor.Aead sendAead = new MessageEncryptor.Aead();
+    private final MessageEncryptor.Aead receiveAead = new MessageEncryptor.Aead();
+    private final byte[] sendNonce = new byte[MessageEncryptor.AEAD_NONCE_LENGTH];
+    private final byte[] receiveNonce = new byte[MessageEncryptor.AEAD_NONCE_LENGTH];
+    private int sendCounter;
+    private int receiveCounter;
+    private volatile boolean confirmed;
+
+    // Our half of the key agreement; one per connection.
+    public static final class Handshake {
+        private final X25519PrivateKeyParameters privateKey = new X25519PrivateKeyParameters(MessageEncryptor.RANDOM);
+        private final byte[] publicKey = privateKey.generatePublicKey().getEncoded();
+
+        public byte[] getPublicKey() {
+            return publicKey.clone();
+        }
+
+        public SessionCipher complete(byte[] peerPublicKey) throws GeneralSecurityException {
+            if (peerPublicKey.length != PUBLIC_KEY_LENGTH) {
+                throw new GeneralSecurityException("Invalid public key length: " + peerPublicKey.length);
+            }
+            byte[] shared = new byte[X25519PrivateKeyParameters.SECRET_SIZE];
+            X25519Agreement agreement = new X25519Agreement();
+            agreement.init(privateKey);
+            try {
+                agreement.calculateAgreement(new X25519PublicKeyParameters(peerPublicKey, 0), shared, 0);
+            } catch (IllegalStateException e) {
+                // A low-order point gives an all-zero secret
+                throw new GeneralSecurityException("Invalid peer public key", e);
+            }
+
+            // Both sides order the keys the same way, so they agree on which chain is whose
+            boolean lower = compare(publicKey, peerPublicKey) < 0;
+            byte[] salt = new byte[2 * PUBLIC_KEY_LENGTH];
+            System.arraycopy(lower ? publicKey : peerPublicKey, 0, salt, 0, PUBLIC_KEY_LENGTH);
+            System.arraycopy(lower ? peerPublicKey : publicKey, 0, salt, PUBLIC_KEY_LENGTH, PUBLIC_KEY_LENGTH);
+            HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+            hkdf.init(new HKDFParameters(shared, salt, INFO));
+            byte[] chains = new byte[2 * KEY_LENGTH];
+            hkdf.generateBytes(chains, 0, chains.length);
+            Arrays.fill(shared, (byte) 0);
+
+            byte[] first = Arrays.copyOfRange(chains, 0, KEY_LENGTH);
+            byte[] second = Arrays.copyOfRange(chains, KEY_LENGTH, 2 * KEY_LENGTH);
+            Arrays.fill(chains, (byte) 0);
+            return new SessionCipher(publicKey.clone(), peerPublicKey.clone(), lower ? first : second, lower ? second : first);
+        }
+    }
+
+    private SessionCipher(byte[] publicKey, byte[] peerPublicKey, byte[] sendChainKey, byte[] receiveChainKey) {
+        this.publicKey = publicKey;
+        this.peerPublicKey = peerPublicKey;
+        this.sendChainKey = sendChainKey;
+        this.receiveChainKey = receiveChainKey;
+    }
+
+    public boolean hasPeerKey(byte[] publicKey) {
+        return MessageDigest.isEqual(peerPublicKey, publicKey);
+    }
+
+    public byte[] getPeerPublicKey() {
+        return peerPublicKey.clone();
+    }
+
+    // The peer echoed a public key of ours. Only an echo of this session's key confirms
+    // that it can read what the session sends; our key from an earlier connection does not.
+    // Returns whether the session is confirmed.
+    public boolean confirm(byte[] echoedKey) {
+        if (MessageDigest.isEqual(publicKey, echoedKey)) {
+            confirmed = true;
+        }
+        return confirmed;
+    }
+
+    public boolean isConfirmed() {
+        return confirmed;
+    }
+
+    public static int sealedLength(int plaintextLength) {
+        return HEADER_LENGTH + plaintextLength + MessageEncryptor.TAG_LENGTH;
+    }
+
+    public static int plaintextLength(int sealedLength) {
+        return sealedLength - HEADER_LENGTH - MessageEncryptor.TAG_LENGTH;
+    }
+
+    // Looks at the remaining bytes of data without moving it.
+    public static boolean isSessionMessage(ByteBuffer data) {
+        return data.remaining() >= HEADER_LENGTH + MessageEncryptor.TAG_LENGTH && data.getInt(data.position()) == MAGIC;
+    }
+
+    // Seals the remaining bytes of plaintext into out, advancing both, and returns
+    // sealedLength of them.
+    public synchronized int encrypt(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        if (out.remaining() < sealedLength(plaintext.remaining())) {
+            throw new ShortBufferException("Need " + sealedLength(plaintext.remaining()) + " bytes, have " + out.remaining());
+        }
+        byte cipher = MessageEncryptor.getPreferredCipher();
+        step(sendChainKey, messageKey);
+        int counter = sendCounter++;
+        out.putInt(MAGIC).put(cipher).putInt(counter);
+        try {
+            sendAead.rekey(cipher, messageKey);
+            return HEADER_LENGTH + sendAead.seal(nonce(sendNonce, counter), plaintext, out);
+        } finally {
+            Arrays.fill(messageKey, (byte) 0);
+            sendAead.clear();
+        }
+    }
+
+    // Opens the remaining bytes of sealed into out and returns the plaintext length; both
+    // buffers stay where they were if it throws. Rejects replays and anything further
+    // ahead than MAX_SKIP. The chain only moves once a message authenticates, so a forged
+    // counter cannot push it out of step.
+    public synchronized int decrypt(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        if (!isSessionMessage(sealed)) {
+            throw new GeneralSecurityException("Not a session message");
+        }
+        int start = sealed.position();
+        byte cipher = sealed.get(start + 4);
+        int counter = sealed.getInt(start + 5);
+        byte[] key;
+        List<byte[]> skipped = null;
+        if (counter < receiveCounter) {
+            key = skippedKeys.get(counter);
+            if (key == null) {
+                throw new GeneralSecurityException("Replayed or expired message " + counter);
+            }
+        } else {
+            if (counter - receiveCounter > MAX_SKIP) {
+                throw new GeneralSecurityException("Message " + counter + " too far ahead of " + receiveCounter);
+            }
+            System.arraycopy(receiveChainKey, 0, nextChainKey, 0, KEY_LENGTH);
+            if (counter > receiveCounter) {
+                skipped = new ArrayList<>(counter - receiveCounter);
+                for (int i = receiveCounter; i < counter; i++) {
+                    byte[] skippedKey = new byte[KEY_LENGTH];
+                    step(nextChainKey, skippedKey);
+                    skipped.add(skippedKey);
+                }
+            }
+            key = messageKey;
+            step(nextChainKey, key);
+        }
+
+        int length = -1;
+        sealed.position(start + HEADER_LENGTH);
+        try {
+            receiveAead.rekey(cipher, key);
+            length = receiveAead.open(nonce(receiveNonce, counter), sealed, out);
+        } finally {
+            receiveAead.clear();
+            if (length < 0) {
+                sealed.position(start);
+            }
+        }
+        if (length < 0) {
+            throw new AEADBadTagException("Message failed authentication");
+        }
+
+        if (counter < receiveCounter) {
+            skippedKeys.remove(counter);
+        } else {
+            if (skipped != null) {
+                for (byte[] skippedKey : skipped) {
+                    skippedKeys.put(receiveCounter++, skippedKey);
+                }
+                Iterator<byte[]> oldest = skippedKeys.values().iterator();
+                while (skippedKeys.size() > MAX_SKIP) {
+                    Arrays.fill(oldest.next(), (byte) 0);
+                    oldest.remove();
+                }
+            }
+            receiveCounter = counter + 1;
+            System.arraycopy(nextChainKey, 0, receiveChainKey, 0, KEY_LENGTH);
+            Arrays.fill(nextChainKey, (byte) 0);
+        }
+        Arrays.fill(key, (byte) 0);
+        return length;
+    }
+
+    // Writes the message key for the current step and advances chainKey in place.
+    // HMac takes the key in on init, so one KeyParameter is refilled for every step.
+    private void step(byte[] chainKey, byte[] messageKey) {
+        byte[] hmacKey = chainKeyParameter.getKey();
+        System.arraycopy(chainKey, 0, hmacKey, 0, KEY_LENGTH);
+        hmac.init(chainKeyParameter);
+        hmac.update(MESSAGE_KEY_INPUT, 0, MESSAGE_KEY_INPUT.length);
+        hmac.doFinal(messageKey, 0);
+        hmac.init(chainKeyParameter);
+        hmac.update(CHAIN_KEY_INPUT, 0, CHAIN_KEY_INPUT.length);
+        hmac.doFinal(chainKey, 0);
+        Arrays.fill(hmacKey, (byte) 0);
+    }
+
+    private static byte[] nonce(byte[] nonce, int counter) {
+        Arrays.fill(nonce, (byte) 0);
+        for (int i = 0; i < 4; i++) {
+            nonce[nonce.length - 1 - i] = (byte) (counter >>> (i * 8));
+        }
+        return nonce;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.protegotinyever.webrtc;
+
+import com.example.protegotinyever.util.MessageEncryptor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Reusable chunk buffers, so a long transfer does not allocate one per chunk. Buffers
+// come in size classes of a power of two ChunkSizer.UNITs plus room for an Envelope
+// header and an AEAD tag, which covers every chunk size ChunkSizer picks without much
+// slack. The pool keeps at most maxPooledBytes; anything released beyond that is left
+// to the garbage collector.
+//
+// The buffers are heap buffers: the Bouncy Castle ChaCha20-Poly1305 works on arrays,
+// so a direct buffer would only add a copy.
+public class BufferPool {
+    private static final int CLASSES = Integer.numberOfTrailingZeros(ChunkSizer.MAX_CHUNK_SIZE / ChunkSizer.UNIT) + 1;
+    private static final int OVERHEAD = Envelope.HEADER_SIZE + MessageEncryptor.TAG_LENGTH;
+
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final long maxPooledBytes;
+    private long pooledBytes;
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<ByteBuffer>[] free = new ArrayDeque[CLASSES];
+        this.free = free;
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    // A cleared buffer with room for an Envelope header, chunkLength bytes and a tag.
+    public synchronized ByteBuffer acquire(int chunkLength) {
+        int sizeClass = sizeClass(chunkLength);
+        ByteBuffer buffer = free[sizeClass].pollFirst();
+        if (buffer == null) {
+            return ByteBuffer.allocate(OVERHEAD + (ChunkSizer.UNIT << sizeClass));
+        }
+        pooledBytes -= buffer.capacity();
+        buffer.clear();
+        return buffer;
+    }
+
+    // The caller must not touch buffer, or any duplicate of it, afterwards.
+    public synchronized void release(ByteBuffer buffer) {
+        int units = (buffer.capacity() - OVERHEAD) / ChunkSizer.UNIT;
+        if (Integer.bitCount(units) != 1 || units > ChunkSizer.MAX_CHUNK_SIZE / ChunkSizer.UNIT
+                || pooledBytes + buffer.capacity() > maxPooledBytes) {
+            return;
+        }
+        free[Integer.numberOfTrailingZeros(units)].addFirst(buffer);
+        pooledBytes += buffer.capacity();
+    }
+
+    private static int sizeClass(int chunkLength) {
+        int units = Math.max(1, (chunkLength + ChunkSizer.UNIT - 1) / ChunkSizer.UNIT);
+        if (units > ChunkSizer.MAX_CHUNK_SIZE / ChunkSizer.UNIT) {
+            throw new IllegalArgumentException("Chunk too large for the pool: " + chunkLength);
+        }
+        return 32 - Integer.numberOfLeadingZeros(units - 1);
+    }
+}
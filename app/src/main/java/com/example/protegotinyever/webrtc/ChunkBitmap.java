@@ -0,0 +1,142 @@
+package com.example.protegotinyever.webrtc;
+
+import java.util.Arrays;
+
+// One bit per ChunkSizer.UNIT of a file, set once that unit is complete. Chunk sizes
+// are whole multiples of UNIT, so every chunk covers a whole run of bits (the last
+// unit of the file may be short). Chunks may complete in any order.
+public class ChunkBitmap {
+    private final long fileSize;
+    private final int unitCount;
+    private final byte[] bits;
+    private int setCount;
+    private int firstMissing; // Every unit below this is set
+
+    public ChunkBitmap(long fileSize) {
+        this(fileSize, null);
+    }
+
+    public ChunkBitmap(long fileSize, byte[] bits) {
+        this.fileSize = fileSize;
+        this.unitCount = (int) ((fileSize + ChunkSizer.UNIT - 1) / ChunkSizer.UNIT);
+        int length = (unitCount + 7) / 8;
+        this.bits = bits != null && bits.length == length ? bits.clone() : new byte[length];
+        for (byte b : this.bits) {
+            setCount += Integer.bitCount(b & 0xFF);
+        }
+    }
+
+    // Returns how many units were newly completed.
+    public synchronized int markRange(long offset, long length) {
+        int added = 0;
+        for (int unit = firstUnit(offset), last = lastUnit(offset, length); unit < last; unit++) {
+            if (!isSet(unit)) {
+                bits[unit >>> 3] |= (byte) (1 << (unit & 7));
+                added++;
+            }
+        }
+        setCount += added;
+        return added;
+    }
+
+    public synchronized boolean containsRange(long offset, long length) {
+        for (int unit = firstUnit(offset), last = lastUnit(offset, length); unit < last; unit++) {
+            if (!isSet(unit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the unit holding offset is complete; false for offsets outside the file.
+    public synchronized boolean containsOffset(long offset) {
+        return offset >= 0 && offset < fileSize && isSet((int) (offset / ChunkSizer.UNIT));
+    }
+
+    private static int firstUnit(long offset) {
+        return (int) ((offset + ChunkSizer.UNIT - 1) / ChunkSizer.UNIT);
+    }
+
+    private int lastUnit(long offset, long length) {
+        long end = Math.min(fileSize, offset + length);
+        // A partial unit only counts when it is the tail of the file
+        return end == fileSize ? unitCount : (int) (end / ChunkSizer.UNIT);
+    }
+
+    public synchronized boolean isSet(int unit) {
+        return (bits[unit >>> 3] & (1 << (unit & 7))) != 0;
+    }
+
+    // Bytes from the start of the file up to the first missing unit.
+    public synchronized long contiguousBytes() {
+        // Bits are never cleared, so the scan can carry on from where it last stopped
+        while (firstMissing < unitCount && isSet(firstMissing)) {
+            firstMissing++;
+        }
+        return Math.min(fileSize, (long) firstMissing * ChunkSizer.UNIT);
+    }
+
+    // Up to maxUnits bits starting at the unit that holds offset, bit i in byte i / 8.
+    public synchronized byte[] bitsFrom(long offset, int maxUnits) {
+        int first = (int) (offset / ChunkSizer.UNIT);
+        int count = Math.max(0, Math.min(maxUnits, unitCount - first));
+        byte[] out = new byte[(count + 7) / 8];
+        for (int i = 0; i < count; i++) {
+            if (isSet(first + i)) {
+                out[i >>> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        return out;
+    }
+
+    // Offset of the first missing unit starting at or after offset, or fileSize if none is missing.
+    public synchronized long nextMissing(long offset) {
+        int unit = firstUnit(offset);
+        while (unit < unitCount && isSet(unit)) {
+            unit++;
+        }
+        return Math.min(fileSize, (long) unit * ChunkSizer.UNIT);
+    }
+
+    // Length of the run of missing units starting at the unit-aligned offset, capped at maxLength.
+    public synchronized long missingRunLength(long offset, long maxLength) {
+        int unit = (int) (offset / ChunkSizer.UNIT);
+        long end = offset;
+        while (unit < unitCount && !isSet(unit) && end - offset < maxLength) {
+            unit++;
+            end = Math.min(fileSize, (long) unit * ChunkSizer.UNIT);
+        }
+        return Math.min(maxLength, end - offset);
+    }
+
+    public synchronized long completedBytes() {
+        long bytes = (long) setCount * ChunkSizer.UNIT;
+        if (unitCount > 0 && isSet(unitCount - 1)) {
+            bytes -= (long) unitCount * ChunkSizer.UNIT - fileSize; // The tail unit may be short
+        }
+        return bytes;
+    }
+
+    // The units that lie entirely within the first length bytes of the file.
+    public synchronized ChunkBitmap truncatedTo(long length) {
+        ChunkBitmap truncated = new ChunkBitmap(fileSize);
+        for (int unit = 0; unit < unitCount; unit++) {
+            long end = Math.min(fileSize, (long) (unit + 1) * ChunkSizer.UNIT);
+            if (end > length) {
+                break;
+            }
+            if (isSet(unit)) {
+                truncated.markRange((long) unit * ChunkSizer.UNIT, end - (long) unit * ChunkSizer.UNIT);
+            }
+        }
+        return truncated;
+    }
+
+    public synchronized boolean isComplete() {
+        return setCount == unitCount;
+    }
+
+    public synchronized byte[] toByteArray() {
+        return Arrays.copyOf(bits, bits.length);
+    }
+}
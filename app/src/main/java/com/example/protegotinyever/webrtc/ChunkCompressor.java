@@ -0,0 +1,154 @@
+package com.example.protegotinyever.webrtc;
+
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional Deflate stage in front of chunk encryption. Files whose MIME type is
+// already compressed never get one; for the rest, each chunk's byte entropy is
+// estimated from a few samples and only chunks that look compressible are deflated,
+// at the fastest level. A chunk is sent compressed only when that saves at least
+// an eighth, so incompressible data costs one sample and nothing on the wire.
+//
+// Compressed payload: plaintext length (int), then the deflated bytes. The length is
+// sent in the clear but sealed as associated data with the chunk. Offsets,
+// acks and Merkle leaves all stay in plaintext terms.
+public class ChunkCompressor {
+    public static final int LENGTH_PREFIX = 4;
+    private static final int SAMPLES = 8;
+    private static final int SAMPLE_SIZE = 512;
+    private static final double MAX_ENTROPY_BITS = 7.2; // Per byte; deflate rarely gains anything above this
+    private static final String[] COMPRESSED_TYPE_PREFIXES = {
+            "image/", "video/", "audio/", "font/woff"
+    };
+    private static final String[] COMPRESSED_TYPES = {
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-xz", "application/x-bzip2",
+            "application/zstd", "application/x-lz4", "application/vnd.android.package-archive",
+            "application/java-archive", "application/epub+zip"
+    };
+    // Uncompressed formats that share a prefix with the list above
+    private static final String[] UNCOMPRESSED_EXCEPTIONS = {
+            "image/svg+xml", "image/bmp", "image/x-ms-bmp", "image/tiff", "audio/wav", "audio/x-wav"
+    };
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private ChunkCompressor() {}
+
+    // False for formats that are compressed already; null or unknown types are sampled.
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return true;
+        }
+        String type = mimeType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        for (String exception : UNCOMPRESSED_EXCEPTIONS) {
+            if (type.equals(exception)) {
+                return true;
+            }
+        }
+        for (String prefix : COMPRESSED_TYPE_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return false;
+            }
+        }
+        for (String compressed : COMPRESSED_TYPES) {
+            if (type.equals(compressed)) {
+                return false;
+            }
+        }
+        // Office Open XML and OpenDocument files are zip containers
+        return !type.startsWith("application/vnd.openxmlformats-") && !type.startsWith("application/vnd.oasis.opendocument.");
+    }
+
+    // Shannon entropy in bits per byte over evenly spaced samples of the chunk.
+    static double sampleEntropy(byte[] data, int offset, int length) {
+        int[] counts = new int[256];
+        int total = 0;
+        if (length <= SAMPLES * SAMPLE_SIZE) {
+            for (int i = offset; i < offset + length; i++) {
+                counts[data[i] & 0xFF]++;
+            }
+            total = length;
+        } else {
+            int stride = (length - SAMPLE_SIZE) / (SAMPLES - 1);
+            for (int sample = 0; sample < SAMPLES; sample++) {
+                int start = offset + sample * stride;
+                for (int i = start; i < start + SAMPLE_SIZE; i++) {
+                    counts[data[i] & 0xFF]++;
+                }
+            }
+            total = SAMPLES * SAMPLE_SIZE;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    // Compresses length bytes of data into out at outOffset, prefix included, and returns
+    // the payload size, or -1 when the chunk should go out as it is. out must have room
+    // for length bytes.
+    public static int compress(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        if (length <= LENGTH_PREFIX || sampleEntropy(data, offset, length) > MAX_ENTROPY_BITS) {
+            return -1;
+        }
+        int limit = length - length / 8;
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        int produced = LENGTH_PREFIX;
+        while (!deflater.finished() && produced < limit) {
+            produced += deflater.deflate(out, outOffset + produced, limit - produced);
+        }
+        if (!deflater.finished()) {
+            return -1;
+        }
+        out[outOffset] = (byte) (length >>> 24);
+        out[outOffset + 1] = (byte) (length >>> 16);
+        out[outOffset + 2] = (byte) (length >>> 8);
+        out[outOffset + 3] = (byte) length;
+        return produced;
+    }
+
+    // Plaintext length a compressed payload declares; the caller bounds-checks it.
+    public static int plaintextLength(byte[] payload, int offset) {
+        return (payload[offset] & 0xFF) << 24 | (payload[offset + 1] & 0xFF) << 16
+                | (payload[offset + 2] & 0xFF) << 8 | (payload[offset + 3] & 0xFF);
+    }
+
+    // Inflates the decrypted deflate stream (the payload past its prefix) into the start
+    // of out; false when it does not expand to exactly plaintextLength bytes.
+    public static boolean decompress(byte[] deflated, int offset, int length, byte[] out, int plaintextLength) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(deflated, offset, length);
+        try {
+            int produced = 0;
+            while (produced < plaintextLength && !inflater.finished()) {
+                int inflated = inflater.inflate(out, produced, plaintextLength - produced);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return false;
+                }
+                produced += inflated;
+            }
+            return produced == plaintextLength;
+        } catch (DataFormatException e) {
+            return false;
+        }
+    }
+}
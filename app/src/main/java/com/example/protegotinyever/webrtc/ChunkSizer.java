@@ -0,0 +1,91 @@
+package com.example.protegotinyever.webrtc;
+
+import com.example.protegotinyever.util.MessageEncryptor;
+
+// Picks the file chunk size for one transfer. The ceiling comes from the remote
+// SCTP max-message-size in the SDP; within it the size is adapted from measured
+// send throughput and heartbeat RTT. Sizes are always whole multiples of UNIT.
+public class ChunkSizer {
+    public static final int UNIT = 16 * 1024;
+    public static final int MIN_CHUNK_SIZE = UNIT;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+    private static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024; // RFC 8841 default when the attribute is absent
+    private static final String MAX_MESSAGE_SIZE_ATTRIBUTE = "a=max-message-size:";
+    private static final long WINDOW_NANOS = 250_000_000L;
+    private static final long RTT_FLOOR_NANOS = 20_000_000L;
+
+    private final int ceiling;
+    private int chunkSize;
+    private long windowStart = -1;
+    private long windowBytes;
+    private double lastThroughput;
+    private long minRttNanos = Long.MAX_VALUE;
+
+    public ChunkSizer(int maxMessageSize) {
+        // Parity frames carry the block layout on top of a full-size sealed chunk
+        int limit = maxMessageSize <= 0 ? MAX_CHUNK_SIZE
+                : Math.min(MAX_CHUNK_SIZE, maxMessageSize - Envelope.HEADER_SIZE - MessageEncryptor.TAG_LENGTH - ParityEncoder.MAX_LAYOUT_SIZE);
+        this.ceiling = Math.max(MIN_CHUNK_SIZE, limit / UNIT * UNIT);
+        this.chunkSize = Math.min(INITIAL_CHUNK_SIZE, ceiling);
+    }
+
+    // Returns the remote max-message-size, 0 meaning "no limit".
+    public static int parseMaxMessageSize(String sdp) {
+        if (sdp == null) {
+            return DEFAULT_MAX_MESSAGE_SIZE;
+        }
+        int index = sdp.indexOf(MAX_MESSAGE_SIZE_ATTRIBUTE);
+        if (index < 0) {
+            return DEFAULT_MAX_MESSAGE_SIZE;
+        }
+        int start = index + MAX_MESSAGE_SIZE_ATTRIBUTE.length();
+        int end = start;
+        while (end < sdp.length() && Character.isDigit(sdp.charAt(end))) {
+            end++;
+        }
+        try {
+            long value = Long.parseLong(sdp.substring(start, end));
+            return value > Integer.MAX_VALUE ? 0 : (int) value;
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_MESSAGE_SIZE;
+        }
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getCeiling() {
+        return ceiling;
+    }
+
+    // Called after each chunk is handed to the channel; rttNanos is the peer's latest
+    // heartbeat round trip, or 0 if none has been measured yet.
+    public synchronized void onChunkSent(int bytes, long rttNanos) {
+        long now = System.nanoTime();
+        if (windowStart < 0) {
+            windowStart = now;
+        }
+        windowBytes += bytes;
+        if (rttNanos > 0 && rttNanos < minRttNanos) {
+            minRttNanos = rttNanos;
+        }
+
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        double throughput = windowBytes * 1e9 / elapsed;
+        boolean rttInflated = rttNanos > RTT_FLOOR_NANOS && minRttNanos != Long.MAX_VALUE && rttNanos > 3 * minRttNanos;
+
+        if (rttInflated || throughput < lastThroughput * 0.7) {
+            chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2 / UNIT * UNIT);
+        } else if (throughput >= lastThroughput * 0.9) {
+            chunkSize = Math.min(ceiling, chunkSize * 2);
+        }
+        lastThroughput = throughput;
+        windowStart = now;
+        windowBytes = 0;
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.protegotinyever.webrtc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Fixed binary header carried in front of every data channel message.
+//
+//  0      2        3     4       6          8           12    16       24
+//  | magic | version | type | flags | reserved | stream id | seq | offset | payload...
+//
+// All fields are big-endian. Receivers read the header in place from the
+// DataChannel buffer, so nothing on the chunk path is decoded into a String.
+public final class Envelope {
+    public static final int HEADER_SIZE = 24;
+    // Bumped whenever a payload layout changes; receivers drop frames of any other
+    // version rather than misparse them.
+    // 2: FILE_META carries the transfer id, key material and Merkle root; RESUME is a
+    //    unit bitmap; PARITY has per-member flags; chunks may be deflated.
+    // 3: a deflated chunk's plaintext length prefix is authenticated with the chunk.
+    // 4: FILE_META may carry its key material sealed with the session keys.
+    // 5: GROUP_HASHES go before RESUME; LEAF_HASHES carry one group each, sent with its chunks.
+    // 6: HANDSHAKE echoes the peer's public key instead of flagging that it holds one.
+    public static final byte VERSION = 6;
+
+    public static final byte TYPE_MESSAGE = 1;
+    public static final byte TYPE_FILE_META = 2;
+    public static final byte TYPE_CHUNK = 3;
+    public static final byte TYPE_ACK = 4;
+    public static final byte TYPE_HEARTBEAT = 5;
+    public static final byte TYPE_HEARTBEAT_ACK = 6;
+    public static final byte TYPE_RESUME = 7;
+    public static final byte TYPE_SACK = 8;
+    public static final byte TYPE_PARITY = 9;
+    public static final byte TYPE_LEAF_HASHES = 10;
+    public static final byte TYPE_HAVE = 11;
+    public static final byte TYPE_HANDSHAKE = 12;
+    public static final byte TYPE_GROUP_HASHES = 13;
+
+    // The chunk is covered by a parity frame that follows its block
+    public static final int FLAG_FEC = 1;
+    // The chunk payload is deflated; see ChunkCompressor
+    public static final int FLAG_COMPRESSED = 2;
+    // FILE_META's key material is sealed with the connection's SessionCipher
+    public static final int FLAG_SEALED_KEY = 4;
+
+    private static final short MAGIC = 0x5054; // "PT"
+
+    private static final int MAGIC_POS = 0;
+    private static final int VERSION_POS = 2;
+    private static final int TYPE_POS = 3;
+    private static final int FLAGS_POS = 4;
+    private static final int STREAM_ID_POS = 8;
+    private static final int SEQ_POS = 12;
+    private static final int OFFSET_POS = 16;
+
+    private Envelope() {}
+
+    public static ByteBuffer allocate(byte type, int flags, int streamId, int seq, long offset, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        putHeader(buffer, type, flags, streamId, seq, offset);
+        return buffer;
+    }
+
+    public static void putHeader(ByteBuffer dst, byte type, int flags, int streamId, int seq, long offset) {
+        dst.putShort(MAGIC);
+        dst.put(VERSION);
+        dst.put(type);
+        dst.putShort((short) flags);
+        dst.putShort((short) 0);
+        dst.putInt(streamId);
+        dst.putInt(seq);
+        dst.putLong(offset);
+    }
+
+    // Absolute, for frames built before the sender knows their flags.
+    public static void setFlags(ByteBuffer buffer, int flags) {
+        buffer.putShort(buffer.position() + FLAGS_POS, (short) flags);
+    }
+
+    public static ByteBuffer wrap(byte type, int flags, int streamId, int seq, long offset, byte[] payload) {
+        ByteBuffer buffer = allocate(type, flags, streamId, seq, offset, payload.length);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer control(byte type, int streamId, int seq, long offset) {
+        ByteBuffer buffer = allocate(type, 0, streamId, seq, offset, 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    // The accessors below read relative to buffer.position() without moving it.
+
+    public static boolean isEnvelope(ByteBuffer buffer) {
+        return hasMagic(buffer) && version(buffer) == VERSION;
+    }
+
+    // An envelope of any version, ours or not.
+    public static boolean hasMagic(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getShort(buffer.position() + MAGIC_POS) == MAGIC;
+    }
+
+    public static int version(ByteBuffer buffer) {
+        return buffer.get(buffer.position() + VERSION_POS) & 0xFF;
+    }
+
+    public static byte type(ByteBuffer buffer) {
+        return buffer.get(buffer.position() + TYPE_POS);
+    }
+
+    public static int flags(ByteBuffer buffer) {
+        return buffer.getShort(buffer.position() + FLAGS_POS) & 0xFFFF;
+    }
+
+    public static int streamId(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + STREAM_ID_POS);
+    }
+
+    public static int seq(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + SEQ_POS);
+    }
+
+    public static long offset(ByteBuffer buffer) {
+        return buffer.getLong(buffer.position() + OFFSET_POS);
+    }
+
+    public static int payloadLength(ByteBuffer buffer) {
+        return buffer.remaining() - HEADER_SIZE;
+    }
+
+    public static void skipHeader(ByteBuffer buffer) {
+        buffer.position(buffer.position() + HEADER_SIZE);
+    }
+
+    // Length-prefixed UTF-8 strings, used only by per-transfer control payloads.
+
+    public static int stringSize(String value) {
+        return 2 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    public static void putString(ByteBuffer dst, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dst.putShort((short) bytes.length);
+        dst.put(bytes);
+    }
+
+    public static String getString(ByteBuffer src) {
+        int length = src.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
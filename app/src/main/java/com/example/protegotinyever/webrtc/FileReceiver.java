@@ -0,0 +1,389 @@
+package com.example.protegotinyever.webrtc;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.protegotinyever.util.MessageEncryptor;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Receives one file stream; a peer may have several in flight. The network callback only copies each chunk out of the
+// DataChannel buffer and hands it to a shared decrypt pool; the single writer thread
+// consumes the decrypted chunks in arrival order, so crypto never runs on the
+// WebRTC network thread. That one copy out of the DataChannel buffer, into a pooled
+// buffer, is the only one: the chunk is decrypted in place and the same buffer is
+// written out and returned to the pool.
+//
+// Chunks are written at their offset straight into the destination (a pending
+// MediaStore entry), so finishing a file needs no copy. The completed units are
+// tracked in a ChunkBitmap that is checkpointed on every sync, so a transfer cut
+// off by a dropped connection or a process kill resumes from the last durable unit.
+//
+// Every unit is checked against the transfer's MerkleTree on the decrypt pool before
+// it is written; a unit that fails is dropped and, never being acknowledged, resent
+// alone. Units only enter the bitmap once verified, so on resume every unit the
+// bitmap holds can be trusted rather than only the contiguous prefix. Compressed
+// chunks are inflated after decryption, so the check always covers the plaintext.
+public class FileReceiver {
+    private static final String TAG = "FileReceiver";
+    private static final int DECRYPT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final ExecutorService decryptExecutor = Executors.newFixedThreadPool(DECRYPT_THREADS);
+    private static final long SYNC_INTERVAL = 1024 * 1024; // Sync to disk every ~1 MB
+    // Safety valve for a writer that falls far behind the network; only then does
+    // the network thread wait. Shared by every stream being received.
+    private static final int MAX_BACKLOG_BYTES = 32 * 1024 * 1024;
+    private static final Semaphore backlog = new Semaphore(MAX_BACKLOG_BYTES);
+    private static final BufferPool bufferPool = new BufferPool(MAX_BACKLOG_BYTES / 4);
+    // Selective acks go out after this many new units or this long, whichever comes first
+    private static final int SACK_EVERY_UNITS = 32;
+    private static final long SACK_INTERVAL_NANOS = 50_000_000L;
+    private static final int MAX_SACK_UNITS = 4096;
+
+    public interface Callback {
+        void onCheckpoint(FileReceiver receiver);
+        void onSack(FileReceiver receiver, ByteBuffer sack);
+        void onFileReceived(FileReceiver receiver) throws IOException;
+        void onFileFailed(FileReceiver receiver, Exception e);
+    }
+
+    private final int streamId;
+    private final String transferId;
+    private final String fileName;
+    private final String fileType;
+    private final long totalLength;
+    private final MessageEncryptor.TransferCipher transferCipher;
+    private final Uri destination;
+    private final ParcelFileDescriptor descriptor;
+    private final FileChannel channel;
+    private final ChunkBitmap chunkBitmap;
+    private final MerkleTree merkleTree;
+    private final Executor writerExecutor;
+    private final WebRTCClient.ProgressListener progressListener;
+    private final Callback callback;
+    private final ParityDecoder parityDecoder = new ParityDecoder();
+    private final AtomicInteger repairedChunks = new AtomicInteger(); // Reported in SACKs so the sender sees the real loss rate
+    private long bytesWritten;
+    private long bytesSinceSync = 0;
+    private int lastPercent = -1;
+    private int unitsSinceSack = 0;
+    private long lastSackNanos = 0;
+    private volatile boolean finished = false;
+
+    // Takes ownership of descriptor, which must be open for writing. chunkBitmap holds the
+    // units already verified and durable in the destination; nothing is received until
+    // merkleTree has every group root.
+    public FileReceiver(int streamId, String transferId, String fileName, String fileType, long totalLength,
+                        MessageEncryptor.TransferCipher transferCipher, Uri destination, ParcelFileDescriptor descriptor,
+                        ChunkBitmap chunkBitmap, MerkleTree merkleTree, Executor writerExecutor,
+                        WebRTCClient.ProgressListener progressListener, Callback callback) throws IOException {
+        this.streamId = streamId;
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.fileType = fileType;
+        this.totalLength = totalLength;
+        this.transferCipher = transferCipher;
+        this.destination = destination;
+        this.descriptor = descriptor;
+        this.chunkBitmap = chunkBitmap;
+        this.merkleTree = merkleTree;
+        this.channel = new FileOutputStream(descriptor.getFileDescriptor()).getChannel();
+        if (channel.size() > totalLength) {
+            channel.truncate(totalLength);
+        }
+        this.bytesWritten = chunkBitmap.completedBytes();
+        this.writerExecutor = writerExecutor;
+        this.progressListener = progressListener;
+        this.callback = callback;
+    }
+
+    // Returns true once every group root is in and matches the root; throws if they do not.
+    public boolean onGroupHashes(int firstGroup, ByteBuffer hashes) throws IOException {
+        return merkleTree.addGroupRoots(firstGroup, hashes);
+    }
+
+    // One group's leaves, sent just ahead of its chunks; throws if they do not match its root.
+    public void onLeafHashes(int firstLeaf, ByteBuffer hashes) throws IOException {
+        merkleTree.addLeaves(firstLeaf, hashes);
+    }
+
+    public boolean isVerified() {
+        return merkleTree.isVerified();
+    }
+
+    // Call once the group roots are verified. Completes right away when the destination
+    // already holds every unit, which happens for empty files and for a transfer
+    // killed just before it finished.
+    public void start() {
+        if (chunkBitmap.isComplete()) {
+            writerExecutor.execute(this::finish);
+        }
+    }
+
+    // Runs on the network thread; payload is positioned at the chunk ciphertext.
+    public void onChunk(long offset, int flags, ByteBuffer payload) throws InterruptedException {
+        if (finished || !merkleTree.isVerified()) {
+            return;
+        }
+        int length = payload.remaining() - MessageEncryptor.TAG_LENGTH;
+        if ((flags & Envelope.FLAG_COMPRESSED) != 0) {
+            // Unauthenticated until the chunk opens; until then it only places and sizes the work
+            length = length > ChunkCompressor.LENGTH_PREFIX ? payload.getInt(payload.position()) : -1;
+        }
+        if (!isValidRange(offset, length)) {
+            Log.w(TAG, "Malformed chunk for stream " + streamId + " at offset: " + offset + ", dropping");
+            return;
+        }
+        if (chunkBitmap.containsRange(offset, length)) {
+            // A resend of something we hold; the sender missed or outran our last SACK
+            Log.w(TAG, "Duplicate chunk for stream " + streamId + " at offset: " + offset + ", skipping");
+            writerExecutor.execute(() -> sendSack(false));
+            return;
+        }
+        if (!merkleTree.hasLeaves(offset, length)) {
+            // Leaves go out on the control channel just before their chunks, but the channels
+            // are not ordered with each other; an unacked chunk is resent
+            Log.w(TAG, "Chunk for stream " + streamId + " at offset " + offset + " is ahead of its leaf hashes, dropping");
+            return;
+        }
+
+        int ciphertextLength = payload.remaining();
+        ParityDecoder.Rebuilt rebuilt = null;
+        if ((flags & Envelope.FLAG_FEC) != 0) {
+            // The block keeps this ciphertext, so it is decrypted out of place into a pooled buffer
+            byte[] ciphertext = new byte[ciphertextLength];
+            payload.get(ciphertext);
+            rebuilt = parityDecoder.onChunk(offset, ciphertext, chunkBitmap);
+            accept(offset, flags, length, ciphertext, ciphertextLength, null);
+        } else {
+            // A compressed chunk can claim less plaintext than it carries; acquire adds the tag
+            ByteBuffer buffer = bufferPool.acquire(Math.max(length, ciphertextLength - MessageEncryptor.TAG_LENGTH));
+            payload.get(buffer.array(), 0, ciphertextLength);
+            accept(offset, flags, length, buffer.array(), ciphertextLength, buffer);
+        }
+        if (rebuilt != null) {
+            repair(rebuilt);
+        }
+    }
+
+    // Runs on the network thread; payload is positioned at the parity layout.
+    public void onParity(ByteBuffer payload) throws InterruptedException {
+        if (finished) {
+            return;
+        }
+        ParityDecoder.Rebuilt rebuilt = parityDecoder.onParity(payload, chunkBitmap);
+        if (rebuilt != null) {
+            repair(rebuilt);
+        }
+    }
+
+    private void repair(ParityDecoder.Rebuilt rebuilt) throws InterruptedException {
+        repairedChunks.incrementAndGet();
+        Log.d(TAG, "Rebuilt chunk for stream " + streamId + " at offset " + rebuilt.offset + " from parity");
+        byte[] chunk = rebuilt.ciphertext;
+        int length = chunk.length - MessageEncryptor.TAG_LENGTH;
+        if ((rebuilt.flags & Envelope.FLAG_COMPRESSED) != 0) {
+            length = length > ChunkCompressor.LENGTH_PREFIX ? ChunkCompressor.plaintextLength(chunk, 0) : -1;
+        }
+        if (isValidRange(rebuilt.offset, length)) {
+            accept(rebuilt.offset, rebuilt.flags, length, chunk, chunk.length, null);
+        }
+    }
+
+    private boolean isValidRange(long offset, int length) {
+        return length > 0 && length <= ChunkSizer.MAX_CHUNK_SIZE && offset >= 0 && offset + length <= totalLength;
+    }
+
+    // length is the plaintext size the chunk covers. With a pooled buffer, ciphertext is
+    // its array and is decrypted in place; otherwise ciphertext is left untouched.
+    private void accept(long offset, int flags, int length, byte[] ciphertext, int ciphertextLength, ByteBuffer pooled)
+            throws InterruptedException {
+        backlog.acquire(length);
+
+        CompletableFuture<ByteBuffer> decrypted = CompletableFuture.supplyAsync(() -> {
+            ByteBuffer buffer = pooled != null ? pooled : bufferPool.acquire(Math.max(length, ciphertextLength - MessageEncryptor.TAG_LENGTH));
+            try {
+                boolean authentic;
+                if ((flags & Envelope.FLAG_COMPRESSED) != 0) {
+                    // The length prefix is sealed as associated data, so it is trusted once this opens
+                    int prefix = ChunkCompressor.LENGTH_PREFIX;
+                    int deflated = transferCipher.decrypt(offset, ciphertext, prefix, prefix, ciphertextLength - prefix, buffer.array(), prefix);
+                    if (deflated < 0 || !isValidRange(offset, ChunkCompressor.plaintextLength(ciphertext, 0))) {
+                        bufferPool.release(buffer);
+                        return null;
+                    }
+                    ByteBuffer plaintext = bufferPool.acquire(length);
+                    authentic = ChunkCompressor.decompress(buffer.array(), prefix, deflated, plaintext.array(), length);
+                    bufferPool.release(buffer);
+                    buffer = plaintext;
+                } else {
+                    authentic = transferCipher.decrypt(offset, ciphertext, 0, ciphertextLength, buffer.array(), 0) == length;
+                }
+                if (!authentic || !merkleTree.verify(offset, buffer.array(), length)) {
+                    bufferPool.release(buffer);
+                    return null;
+                }
+                buffer.limit(length);
+                return buffer;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, decryptExecutor);
+        // Chunks from different bulk channels arrive out of order; each is written at its own offset
+        writerExecutor.execute(() -> writeChunk(offset, length, decrypted));
+    }
+
+    private void writeChunk(long offset, int length, CompletableFuture<ByteBuffer> decrypted) {
+        ByteBuffer chunk = null;
+        try {
+            chunk = decrypted.join();
+            if (finished) {
+                return;
+            }
+            if (chunk == null) {
+                Log.w(TAG, "Chunk for stream " + streamId + " at offset " + offset + " failed verification, awaiting resend");
+                return;
+            }
+            long position = offset;
+            while (chunk.hasRemaining()) {
+                position += channel.write(chunk, position);
+            }
+            int added = chunkBitmap.markRange(offset, length);
+            if (added == 0) {
+                return;
+            }
+            releaseCompleteGroups(offset, length);
+            unitsSinceSack += added;
+            bytesWritten += length;
+            bytesSinceSync += length;
+            if (bytesSinceSync >= SYNC_INTERVAL) {
+                channel.force(false);
+                bytesSinceSync = 0;
+                callback.onCheckpoint(this);
+            }
+
+            int percent = totalLength > 0 ? (int) (bytesWritten * 100 / totalLength) : 100;
+            if (progressListener != null && percent != lastPercent) {
+                lastPercent = percent;
+                progressListener.onProgress("Receiving", percent, fileName);
+            }
+
+            if (chunkBitmap.isComplete()) {
+                sendSack(true);
+                finish();
+            } else if (unitsSinceSack >= SACK_EVERY_UNITS) {
+                sendSack(true);
+            } else {
+                sendSack(false);
+            }
+        } catch (Exception e) {
+            Exception cause = e instanceof CompletionException && e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            Log.e(TAG, "Error writing chunk at offset " + offset + ": " + cause.getMessage(), cause);
+            fail(cause);
+        } finally {
+            if (chunk != null) {
+                bufferPool.release(chunk);
+            }
+            backlog.release(length);
+        }
+    }
+
+    // Runs on the writer thread. The leaves of a group are only needed until all of it is in.
+    private void releaseCompleteGroups(long offset, int length) {
+        for (int group = MerkleTree.groupOf(offset), last = MerkleTree.groupOf(offset + length - 1); group <= last; group++) {
+            if (chunkBitmap.containsRange(MerkleTree.groupStart(group), MerkleTree.groupLength(group, totalLength))) {
+                merkleTree.releaseGroup(group);
+            }
+        }
+    }
+
+    // Runs on the writer thread. Only units already written are acknowledged.
+    private void sendSack(boolean force) {
+        long now = System.nanoTime();
+        if (finished || (!force && now - lastSackNanos < SACK_INTERVAL_NANOS)) {
+            return;
+        }
+        long ackOffset = chunkBitmap.contiguousBytes();
+        byte[] bits = chunkBitmap.bitsFrom(ackOffset, MAX_SACK_UNITS);
+        callback.onSack(this, Envelope.wrap(Envelope.TYPE_SACK, 0, streamId, repairedChunks.get(), ackOffset, bits));
+        unitsSinceSack = 0;
+        lastSackNanos = now;
+    }
+
+    private void finish() {
+        try {
+            finished = true;
+            channel.force(true);
+            close();
+            callback.onFileReceived(this);
+        } catch (Exception e) {
+            Log.e(TAG, "Error finishing stream " + streamId + ": " + e.getMessage(), e);
+            finished = false;
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        if (!finished) {
+            abort();
+            callback.onFileFailed(this, e);
+        }
+    }
+
+    // Stops receiving but keeps what was written so the transfer can resume later.
+    public void abort() {
+        finished = true;
+        try {
+            close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing destination: " + e.getMessage(), e);
+        }
+    }
+
+    private void close() throws IOException {
+        channel.close();
+        descriptor.close();
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getFileType() {
+        return fileType;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public Uri getDestination() {
+        return destination;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleTree.getRoot();
+    }
+
+    public ChunkBitmap getChunkBitmap() {
+        return chunkBitmap;
+    }
+}
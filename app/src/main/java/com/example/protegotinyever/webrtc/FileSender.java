@@ -0,0 +1,273 @@
+package com.example.protegotinyever.webrtc;
+
+import android.util.Log;
+
+import com.example.protegotinyever.util.MessageEncryptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+// Sends one file as a three-stage pipeline: a read-ahead thread, a shared pool that
+// encrypts chunks in parallel, and the calling thread, which hands the encrypted
+// chunks in order to the peer's SendScheduler. The stages are joined by a bounded
+// queue of futures, so at most PIPELINE_DEPTH chunks are read but not yet sent.
+// Sent chunks stay in a SendWindow until the receiver acknowledges them and are
+// resent from there when lost, so run() only returns once every byte has arrived.
+// With a ParityEncoder, lossy links also get parity frames that let the receiver
+// rebuild a lost chunk without waiting for the retransmission. When compression is
+// on, the encrypt stage deflates the chunks that ChunkCompressor finds worth it.
+//
+// The read-ahead thread also hashes each MerkleTree group as it first reaches it and
+// sends those leaves on the control channel ahead of the group's chunks.
+//
+// The file is read by position, so resuming seeks instead of reading past what the
+// receiver holds. Plaintext and frames live in a BufferPool: a frame goes back once
+// its chunk is acknowledged and no retransmission of it can still be queued, so a
+// steady transfer reuses the same buffers instead of allocating per chunk.
+public class FileSender {
+    private static final String TAG = "FileSender";
+    private static final int PIPELINE_DEPTH = 8;
+    private static final int ENCRYPT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final ExecutorService encryptExecutor = Executors.newFixedThreadPool(ENCRYPT_THREADS);
+    private static final ExecutorService readExecutor = Executors.newCachedThreadPool();
+
+    private final FileChannel fileChannel;
+    private final SendScheduler scheduler;
+    private final ChunkSizer chunkSizer;
+    private final MessageEncryptor.TransferCipher transferCipher;
+    private final int streamId;
+    private final long fileSize;
+    private final String fileName;
+    private final WebRTCClient.ProgressListener progressListener;
+    private final LongSupplier rttNanos;
+    private final SendWindow sendWindow;
+    private final ParityEncoder parityEncoder;
+    private final boolean compress;
+    private final ChunkBitmap receiverHas;
+    private final BlockingQueue<Future<EncryptedChunk>> pipeline = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+    private final BufferPool bufferPool = new BufferPool(SendWindow.MAX_IN_FLIGHT_BYTES + 2L * PIPELINE_DEPTH * ChunkSizer.MAX_CHUNK_SIZE);
+    private final ArrayDeque<SendWindow.InFlight> acked = new ArrayDeque<>(); // Waiting for their last send to leave the scheduler
+    private long bulkFramesQueued;
+    private volatile boolean cancelled = false;
+    private long sentOffset;
+    private int lastPercent = -1;
+
+    // fileChannel is only read by position and is not closed here.
+    public FileSender(FileChannel fileChannel, SendScheduler scheduler, ChunkSizer chunkSizer,
+                      MessageEncryptor.TransferCipher transferCipher, int streamId, ChunkBitmap receiverHas, long fileSize,
+                      String fileName, WebRTCClient.ProgressListener progressListener, LongSupplier rttNanos,
+                      SendWindow sendWindow, ParityEncoder parityEncoder, boolean compress) {
+        this.fileChannel = fileChannel;
+        this.scheduler = scheduler;
+        this.chunkSizer = chunkSizer;
+        this.transferCipher = transferCipher;
+        this.streamId = streamId;
+        this.receiverHas = receiverHas;
+        this.sentOffset = receiverHas.contiguousBytes();
+        this.fileSize = fileSize;
+        this.fileName = fileName;
+        this.progressListener = progressListener;
+        this.rttNanos = rttNanos;
+        this.sendWindow = sendWindow;
+        this.parityEncoder = parityEncoder;
+        this.compress = compress;
+    }
+
+    // Blocks until every chunk has been acknowledged or the transfer fails.
+    public void run() throws Exception {
+        Future<?> reader = readExecutor.submit(this::readLoop);
+        try {
+            while (true) {
+                EncryptedChunk chunk = pipeline.take().get();
+                if (chunk == null) {
+                    break;
+                }
+                resendLost();
+                while (!sendWindow.hasRoom(chunk.length)) {
+                    awaitWindow();
+                }
+                ByteBuffer parity = parityEncoder != null
+                        ? parityEncoder.add(chunk.offset, chunk.frame, sendWindow.lossRate()) : null;
+                SendWindow.InFlight sent = sendWindow.onSent(chunk.offset, chunk.length, chunk.frame);
+                sendBulk(chunk.frame.duplicate());
+                sent.queuedAt = bulkFramesQueued;
+                if (parity != null) {
+                    sendBulk(parity);
+                }
+                recycleAcked();
+                sentOffset = chunk.offset + chunk.length;
+                chunkSizer.onChunkSent(chunk.length, rttNanos.getAsLong());
+
+                // Only report whole-percent steps; a multi-GB file has far more chunks than that
+                int percent = fileSize > 0 ? (int) (sentOffset * 100 / fileSize) : 100;
+                if (progressListener != null && percent != lastPercent) {
+                    lastPercent = percent;
+                    progressListener.onProgress("Sending", percent, fileName);
+                }
+            }
+            ByteBuffer parity = parityEncoder != null ? parityEncoder.flush() : null;
+            if (parity != null) {
+                sendBulk(parity);
+            }
+            while (!sendWindow.isEmpty()) {
+                awaitWindow();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            cancelled = true;
+            pipeline.clear();
+            scheduler.removeStream(streamId);
+            try {
+                reader.get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Read stage ended with error: " + e.getCause());
+            }
+        }
+    }
+
+    // Offset up to which the receiver has acknowledged every byte.
+    public long getAckedOffset() {
+        return sendWindow.getAckedOffset();
+    }
+
+    // Waits for acknowledgements, then resends whatever the window gave up on.
+    private void awaitWindow() throws IOException, InterruptedException {
+        if (scheduler.isClosed()) {
+            throw new IOException("Send scheduler closed");
+        }
+        sendWindow.await(FlowControl.MAX_WAIT_MS, rttNanos.getAsLong());
+        resendLost();
+        recycleAcked();
+    }
+
+    private void resendLost() throws IOException, InterruptedException {
+        for (SendWindow.InFlight chunk : sendWindow.takeLost()) {
+            if (sendWindow.onResent(chunk)) {
+                sendBulk(chunk.frame.duplicate());
+                chunk.queuedAt = bulkFramesQueued;
+            }
+        }
+    }
+
+    private void sendBulk(ByteBuffer frame) throws IOException, InterruptedException {
+        scheduler.sendBulk(streamId, frame);
+        bulkFramesQueued++;
+    }
+
+    // Returns the frames of acknowledged chunks to the pool once their last send is out.
+    private void recycleAcked() {
+        sendWindow.takeAcked(acked);
+        long sentBefore = bulkFramesQueued - SendScheduler.MAX_QUEUED_PER_STREAM;
+        int pending = acked.size();
+        for (int i = 0; i < pending; i++) {
+            SendWindow.InFlight chunk = acked.pollFirst();
+            if (chunk.queuedAt <= sentBefore) {
+                bufferPool.release(chunk.frame);
+            } else {
+                acked.addLast(chunk);
+            }
+        }
+    }
+
+    // Units the receiver already holds are never read, so a resumed transfer only
+    // touches what is missing.
+    private void readLoop() {
+        long offset = 0;
+        int seq = 0;
+        int leafGroup = 0; // First group whose leaves have not gone out
+        try {
+            while (!cancelled) {
+                offset = receiverHas.nextMissing(offset);
+                if (offset >= fileSize) {
+                    break;
+                }
+                int chunkSize = (int) receiverHas.missingRunLength(offset, chunkSizer.getChunkSize());
+                leafGroup = Math.max(leafGroup, MerkleTree.groupOf(offset));
+                for (int last = MerkleTree.groupOf(offset + chunkSize - 1); leafGroup <= last; leafGroup++) {
+                    sendLeaves(leafGroup);
+                }
+                ByteBuffer chunk = bufferPool.acquire(chunkSize);
+                chunk.limit(chunkSize);
+                readFully(chunk, offset);
+                long chunkOffset = offset;
+                int chunkSeq = seq++;
+                pipeline.put(encryptExecutor.submit(() -> encrypt(chunkSeq, chunkOffset, chunk, chunkSize)));
+                offset += chunkSize;
+            }
+            pipeline.put(CompletableFuture.completedFuture(null));
+        } catch (Exception e) {
+            CompletableFuture<EncryptedChunk> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            try {
+                pipeline.put(failed);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private EncryptedChunk encrypt(int seq, long offset, ByteBuffer plaintext, int length) throws Exception {
+        byte[] chunk = plaintext.array();
+        ByteBuffer frame = bufferPool.acquire(length);
+        Envelope.putHeader(frame, Envelope.TYPE_CHUNK, 0, streamId, seq, offset);
+        byte[] out = frame.array();
+        int payloadLength = compress ? ChunkCompressor.compress(chunk, 0, length, out, Envelope.HEADER_SIZE) : -1;
+        if (payloadLength > 0) {
+            // The deflated bytes are encrypted at the chunk's own offset; they fit inside its range.
+            // The length prefix stays readable for the receiver's bookkeeping but is authenticated
+            int prefix = ChunkCompressor.LENGTH_PREFIX;
+            int deflated = Envelope.HEADER_SIZE + prefix;
+            frame.limit(deflated + transferCipher.encrypt(offset, out, prefix, deflated, payloadLength - prefix, out, deflated));
+        } else {
+            frame.limit(Envelope.HEADER_SIZE + transferCipher.encrypt(offset, chunk, 0, length, out, Envelope.HEADER_SIZE));
+        }
+        frame.position(0);
+        if (payloadLength > 0) {
+            Envelope.setFlags(frame, Envelope.FLAG_COMPRESSED);
+        }
+        bufferPool.release(plaintext);
+        return new EncryptedChunk(offset, length, frame);
+    }
+
+    // Hashed from the file here rather than kept from the first pass, so a group's leaves
+    // exist only while it is being sent.
+    private void sendLeaves(int group) throws IOException {
+        byte[] leaves = MerkleTree.hashGroup(fileChannel, fileSize, group);
+        scheduler.sendControl(Envelope.wrap(Envelope.TYPE_LEAF_HASHES, 0, streamId, 0,
+                (long) group * MerkleTree.LEAVES_PER_GROUP, leaves));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("File is shorter than its recorded size");
+            }
+            position += read;
+        }
+    }
+
+    private static final class EncryptedChunk {
+        final long offset;
+        final int length;
+        final ByteBuffer frame;
+
+        EncryptedChunk(long offset, int length, ByteBuffer frame) {
+            this.offset = offset;
+            this.length = length;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.protegotinyever.webrtc;
+
+import org.webrtc.DataChannel;
+
+// Watermark-based backpressure for one outgoing DataChannel. Bulk sending stops once
+// the channel buffer passes the high watermark and the listener is told from
+// onBufferedAmountChange as soon as it drains to the low watermark.
+public class FlowControl {
+    // The Android DataChannel API has no bufferedAmountLowThreshold event, so a missed
+    // callback is covered by re-checking bufferedAmount() after this long.
+    public static final long MAX_WAIT_MS = 250;
+
+    private final DataChannel dataChannel;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private volatile Runnable writableListener;
+    private boolean draining = false;
+    private volatile boolean closed = false;
+
+    public FlowControl(DataChannel dataChannel, long highWatermark, long lowWatermark) {
+        this.dataChannel = dataChannel;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    // Called when bulk data may be sent again, and when the channel closes.
+    public void setWritableListener(Runnable listener) {
+        this.writableListener = listener;
+    }
+
+    public synchronized boolean isWritable() {
+        long bufferedAmount = dataChannel.bufferedAmount();
+        if (draining) {
+            draining = bufferedAmount > lowWatermark;
+        } else if (bufferedAmount > highWatermark) {
+            draining = true;
+        }
+        return !draining;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void onBufferedAmountChange(long bufferedAmount) {
+        if (bufferedAmount > lowWatermark) {
+            return;
+        }
+        synchronized (this) {
+            if (!draining) {
+                return;
+            }
+            draining = false;
+        }
+        notifyListener();
+    }
+
+    public void close() {
+        closed = true;
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        Runnable listener = writableListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
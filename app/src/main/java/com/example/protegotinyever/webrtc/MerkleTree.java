@@ -0,0 +1,253 @@
+package com.example.protegotinyever.webrtc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Integrity for one transfer. Every ChunkSizer.UNIT of plaintext is a leaf (the same
+// units ChunkBitmap tracks) hashed with SHA-256, and a binary tree over the leaves
+// gives the root that travels in FILE_META. Leaf and node hashes are domain separated,
+// and a level with an odd count promotes its last hash unchanged.
+//
+// Leaves come in aligned groups of LEAVES_PER_GROUP. That is a power of two, so each
+// group is a whole subtree and the root is rootOf the group roots. The receiver checks
+// the group roots against the root before any data flows; a group's leaves only come
+// with the chunks they cover, are checked against their group root, and are dropped
+// once every unit of the group is in. Neither side ever holds the full leaf list.
+public class MerkleTree {
+    public static final int HASH_SIZE = 32;
+    public static final int LEAVES_PER_GROUP = 1024; // 16 MB of file, 32 KB of hashes per control frame
+    public static final int GROUPS_PER_FRAME = 1024;
+    private static final long GROUP_BYTES = (long) LEAVES_PER_GROUP * ChunkSizer.UNIT;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    });
+
+    private final byte[] root;
+    private final long fileSize;
+    private final int groupCount;
+    private final byte[] groupRoots;
+    private final byte[][] groupLeaves; // Null until a group's leaves arrive, and again once it is complete
+    private int groupRootsReceived;
+    private volatile boolean verified;
+
+    // Receiving side: group roots and leaves arrive later.
+    public MerkleTree(byte[] root, long fileSize) {
+        this.root = root;
+        this.fileSize = fileSize;
+        this.groupCount = groupCount(fileSize);
+        this.groupRoots = new byte[groupCount * HASH_SIZE];
+        this.groupLeaves = new byte[groupCount][];
+        this.verified = groupCount == 0 && MessageDigest.isEqual(root, rootOf(groupRoots));
+    }
+
+    public static int leafCount(long fileSize) {
+        return (int) ((fileSize + ChunkSizer.UNIT - 1) / ChunkSizer.UNIT);
+    }
+
+    public static int groupCount(long fileSize) {
+        return (int) ((fileSize + GROUP_BYTES - 1) / GROUP_BYTES);
+    }
+
+    public static int groupOf(long offset) {
+        return (int) (offset / GROUP_BYTES);
+    }
+
+    public static long groupStart(int group) {
+        return group * GROUP_BYTES;
+    }
+
+    public static long groupLength(int group, long fileSize) {
+        return Math.min(GROUP_BYTES, fileSize - groupStart(group));
+    }
+
+    // Sending side: the leaf hashes of one group back to back, read by position.
+    public static byte[] hashGroup(FileChannel fileChannel, long fileSize, int group) throws IOException {
+        long start = groupStart(group);
+        long end = start + groupLength(group, fileSize);
+        byte[] leaves = new byte[leafCount(end - start) * HASH_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocate(ChunkSizer.MAX_CHUNK_SIZE);
+        long position = start;
+        int leaf = 0;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                    throw new IOException("File is shorter than its recorded size");
+                }
+            }
+            for (int offset = 0; offset < buffer.limit(); offset += ChunkSizer.UNIT, leaf++) {
+                hashLeaf(buffer.array(), offset, Math.min(ChunkSizer.UNIT, buffer.limit() - offset), leaves, leaf * HASH_SIZE);
+            }
+            position += buffer.limit();
+        }
+        return leaves;
+    }
+
+    // Sending side: one pass over the file, keeping only the group roots; rootOf them is
+    // the file's root.
+    public static byte[] hashGroupRoots(FileChannel fileChannel, long fileSize) throws IOException {
+        int count = groupCount(fileSize);
+        byte[] roots = new byte[count * HASH_SIZE];
+        for (int group = 0; group < count; group++) {
+            System.arraycopy(rootOf(hashGroup(fileChannel, fileSize, group)), 0, roots, group * HASH_SIZE, HASH_SIZE);
+        }
+        return roots;
+    }
+
+    public static byte[] rootOf(byte[] hashes) {
+        int count = hashes.length / HASH_SIZE;
+        if (count == 0) {
+            byte[] empty = new byte[HASH_SIZE];
+            hashLeaf(new byte[0], 0, 0, empty, 0);
+            return empty;
+        }
+        byte[] level = hashes;
+        MessageDigest digest = digests.get();
+        while (count > 1) {
+            int parents = (count + 1) / 2;
+            byte[] next = new byte[parents * HASH_SIZE];
+            for (int i = 0; i < parents; i++) {
+                int left = 2 * i * HASH_SIZE;
+                if (2 * i + 1 == count) {
+                    System.arraycopy(level, left, next, i * HASH_SIZE, HASH_SIZE);
+                    continue;
+                }
+                digest.update(NODE_PREFIX);
+                digest.update(level, left, 2 * HASH_SIZE);
+                try {
+                    digest.digest(next, i * HASH_SIZE, HASH_SIZE);
+                } catch (DigestException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            level = next;
+            count = parents;
+        }
+        byte[] root = new byte[HASH_SIZE];
+        System.arraycopy(level, 0, root, 0, HASH_SIZE);
+        return root;
+    }
+
+    private static void hashLeaf(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = digests.get();
+        digest.update(LEAF_PREFIX);
+        digest.update(data, offset, length);
+        try {
+            digest.digest(out, outOffset, HASH_SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns true once every group root is in and they hash to the root.
+    public synchronized boolean addGroupRoots(int firstGroup, ByteBuffer hashes) throws IOException {
+        int count = hashes.remaining() / HASH_SIZE;
+        if (firstGroup < 0 || firstGroup + count > groupCount || hashes.remaining() % HASH_SIZE != 0) {
+            throw new IOException("Group hashes out of range: " + firstGroup + "+" + count + " of " + groupCount);
+        }
+        hashes.get(groupRoots, firstGroup * HASH_SIZE, count * HASH_SIZE);
+        groupRootsReceived += count;
+        if (groupRootsReceived < groupCount) {
+            return false;
+        }
+        if (!MessageDigest.isEqual(root, rootOf(groupRoots))) {
+            throw new IOException("Group hashes do not match the Merkle root");
+        }
+        verified = true;
+        return true;
+    }
+
+    // One whole group's leaves, starting at its first leaf. Throws if they do not hash
+    // to the verified group root.
+    public void addLeaves(int firstLeaf, ByteBuffer hashes) throws IOException {
+        int group = firstLeaf / LEAVES_PER_GROUP;
+        if (!verified || firstLeaf < 0 || firstLeaf % LEAVES_PER_GROUP != 0 || group >= groupCount
+                || hashes.remaining() != leafCount(groupLength(group, fileSize)) * HASH_SIZE) {
+            throw new IOException("Leaf hashes out of range: " + firstLeaf + "+" + hashes.remaining() / HASH_SIZE);
+        }
+        byte[] leaves = new byte[hashes.remaining()];
+        hashes.get(leaves);
+        byte[] groupRoot = rootOf(leaves);
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (groupRoot[i] != groupRoots[group * HASH_SIZE + i]) {
+                throw new IOException("Leaf hashes for group " + group + " do not match its root");
+            }
+        }
+        synchronized (this) {
+            groupLeaves[group] = leaves;
+        }
+    }
+
+    // Whether every group that length bytes from offset touch has its leaves.
+    public synchronized boolean hasLeaves(long offset, int length) {
+        for (int group = groupOf(offset), last = groupOf(offset + length - 1); group <= last; group++) {
+            if (group >= groupCount || groupLeaves[group] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Called once every unit of the group is in; nothing needs its leaves after that.
+    public synchronized void releaseGroup(int group) {
+        groupLeaves[group] = null;
+    }
+
+    private synchronized byte[] leavesOf(int group) {
+        return groupLeaves[group];
+    }
+
+    public byte[] getRoot() {
+        return root.clone();
+    }
+
+    // Files are identified by their root, so equal content is recognised whatever its name.
+    public static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // The group roots match the root, so leaves can be accepted.
+    public boolean isVerified() {
+        return verified;
+    }
+
+    // Checks length bytes of plaintext starting at the unit-aligned offset; false also when
+    // a group's leaves are not here. Safe to call from several threads.
+    public boolean verify(long offset, byte[] data, int length) {
+        byte[] hash = new byte[HASH_SIZE];
+        for (int position = 0; position < length; position += ChunkSizer.UNIT) {
+            long unitOffset = offset + position;
+            int group = groupOf(unitOffset);
+            byte[] leaves = group < groupCount ? leavesOf(group) : null;
+            if (leaves == null) {
+                return false;
+            }
+            int leaf = (int) ((unitOffset - groupStart(group)) / ChunkSizer.UNIT);
+            if (leaf * HASH_SIZE >= leaves.length) {
+                return false;
+            }
+            hashLeaf(data, position, Math.min(ChunkSizer.UNIT, length - position), hash, 0);
+            for (int i = 0; i < HASH_SIZE; i++) {
+                if (hash[i] != leaves[leaf * HASH_SIZE + i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.protegotinyever.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Receiving side of ParityEncoder for one stream. The payload of every chunk that
+// arrives with FLAG_FEC is kept until its block resolves; once a block's parity frame
+// is in and exactly one member is missing, that member is rebuilt by XOR. Memory is
+// bounded: the oldest chunks and blocks are dropped first, and anything that cannot be
+// rebuilt is left to SACK retransmission.
+public class ParityDecoder {
+    private static final long MAX_RETAINED_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_PENDING_BLOCKS = 64;
+
+    private final LinkedHashMap<Long, byte[]> retained = new LinkedHashMap<>(); // Chunk ciphertext by offset, oldest first
+    private final LinkedHashMap<Long, Block> blocks = new LinkedHashMap<>(); // By first offset, oldest first
+    private final Map<Long, Block> blocksByMember = new HashMap<>();
+    private long retainedBytes;
+
+    public static final class Rebuilt {
+        public final long offset;
+        public final int flags;
+        public final byte[] ciphertext;
+
+        Rebuilt(long offset, int flags, byte[] ciphertext) {
+            this.offset = offset;
+            this.flags = flags;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private static final class Block {
+        final long[] offsets;
+        final int[] lengths; // Payload bytes on the wire
+        final short[] flags;
+        final byte[] parity;
+
+        Block(long[] offsets, int[] lengths, short[] flags, byte[] parity) {
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.flags = flags;
+            this.parity = parity;
+        }
+    }
+
+    // ciphertext must not be modified afterwards. Returns a chunk this completed, or null.
+    public synchronized Rebuilt onChunk(long offset, byte[] ciphertext, ChunkBitmap bitmap) {
+        if (retained.put(offset, ciphertext) == null) {
+            retainedBytes += ciphertext.length;
+        }
+        while (retainedBytes > MAX_RETAINED_BYTES && !retained.isEmpty()) {
+            Iterator<byte[]> oldest = retained.values().iterator();
+            retainedBytes -= oldest.next().length;
+            oldest.remove();
+        }
+        Block block = blocksByMember.get(offset);
+        return block != null ? resolve(block, bitmap) : null;
+    }
+
+    // payload is positioned at the parity layout. Returns the rebuilt chunk, or null.
+    public synchronized Rebuilt onParity(ByteBuffer payload, ChunkBitmap bitmap) {
+        int count = payload.getShort() & 0xFFFF;
+        if (count == 0 || count > ParityEncoder.MAX_BLOCK) {
+            return null;
+        }
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        short[] flags = new short[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = payload.getLong();
+            lengths[i] = payload.getInt();
+            flags[i] = payload.getShort();
+        }
+        byte[] parity = new byte[payload.remaining()];
+        payload.get(parity);
+        Block block = new Block(offsets, lengths, flags, parity);
+        blocks.put(offsets[0], block);
+        for (long offset : offsets) {
+            blocksByMember.put(offset, block);
+        }
+        if (blocks.size() > MAX_PENDING_BLOCKS) {
+            release(blocks.values().iterator().next());
+        }
+        return resolve(block, bitmap);
+    }
+
+    private Rebuilt resolve(Block block, ChunkBitmap bitmap) {
+        int missing = -1;
+        List<byte[]> members = new ArrayList<>(block.offsets.length);
+        for (int i = 0; i < block.offsets.length; i++) {
+            byte[] ciphertext = retained.get(block.offsets[i]);
+            if (ciphertext != null) {
+                members.add(ciphertext);
+            } else if (!bitmap.containsOffset(block.offsets[i])) {
+                // Chunks start on a unit and are marked whole, so the first unit tells whether one is
+                // held. The payload length is no guide: a compressed one is shorter than its range
+                if (missing >= 0) {
+                    return null; // Two holes; wait for more data or the retransmission
+                }
+                missing = i;
+            }
+        }
+        if (missing < 0) {
+            release(block);
+            return null;
+        }
+        if (members.size() != block.offsets.length - 1) {
+            return null; // A member arrived but its copy was evicted
+        }
+        int length = block.lengths[missing];
+        if (length > block.parity.length) {
+            release(block);
+            return null;
+        }
+        byte[] rebuilt = new byte[length];
+        System.arraycopy(block.parity, 0, rebuilt, 0, length);
+        for (byte[] member : members) {
+            for (int i = 0, end = Math.min(length, member.length); i < end; i++) {
+                rebuilt[i] ^= member[i];
+            }
+        }
+        release(block);
+        return new Rebuilt(block.offsets[missing], block.flags[missing], rebuilt);
+    }
+
+    private void release(Block block) {
+        blocks.remove(block.offsets[0]);
+        for (long offset : block.offsets) {
+            blocksByMember.remove(offset);
+            byte[] ciphertext = retained.remove(offset);
+            if (ciphertext != null) {
+                retainedBytes -= ciphertext.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.protegotinyever.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Forward error correction for one outgoing stream. Consecutive chunks are grouped
+// into blocks of k and each block is followed by one XOR parity frame over their
+// ciphertext, so the receiver can rebuild any single lost chunk of a block without
+// waiting a round trip for the SACK retransmission. k follows the loss rate the
+// SendWindow observes: no parity on a clean link, smaller blocks as loss rises.
+//
+// Parity frame payload: count (short), count x (offset long, payload length int,
+// flags short), then the XOR of the chunk payloads, each zero-padded to the longest.
+// The flags let a rebuilt chunk be decoded like the original, compressed or not.
+public class ParityEncoder {
+    public static final int MAX_BLOCK = 32;
+    public static final int MAX_LAYOUT_SIZE = 2 + MAX_BLOCK * 14;
+    private static final int MIN_BLOCK = 4;
+    private static final double MIN_LOSS_RATE = 0.005; // Below this retransmission alone is cheaper
+
+    private final int streamId;
+    private final long[] offsets = new long[MAX_BLOCK];
+    private final int[] lengths = new int[MAX_BLOCK];
+    private final short[] flags = new short[MAX_BLOCK];
+    private ByteBuffer parity;
+    private int parityLength;
+    private int blockSize;
+    private int count;
+
+    public ParityEncoder(int streamId, int maxChunkSize) {
+        this.streamId = streamId;
+        this.parity = ByteBuffer.allocate(maxChunkSize);
+    }
+
+    // Parity overhead of 1/k keeps a block with two losses rare at the given rate.
+    static int blockSizeFor(double lossRate) {
+        if (lossRate < MIN_LOSS_RATE) {
+            return 0;
+        }
+        return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, (int) (0.1 / lossRate)));
+    }
+
+    // Called with each new chunk frame before it is first sent; sets FLAG_FEC on it when
+    // it joins a block. Returns the parity frame once the block is full, else null.
+    public ByteBuffer add(long offset, ByteBuffer frame, double lossRate) {
+        if (count == 0) {
+            blockSize = blockSizeFor(lossRate);
+            if (blockSize == 0) {
+                return null;
+            }
+        }
+        int frameFlags = Envelope.flags(frame) | Envelope.FLAG_FEC;
+        Envelope.setFlags(frame, frameFlags);
+        int length = frame.remaining() - Envelope.HEADER_SIZE;
+        if (parity.capacity() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(length);
+            larger.put(parity.array(), 0, parityLength);
+            parity = larger;
+        }
+        int base = frame.position() + Envelope.HEADER_SIZE;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            parity.putLong(i, parity.getLong(i) ^ frame.getLong(base + i));
+        }
+        for (; i < length; i++) {
+            parity.put(i, (byte) (parity.get(i) ^ frame.get(base + i)));
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        flags[count] = (short) frameFlags;
+        parityLength = Math.max(parityLength, length);
+        count++;
+        return count == blockSize ? flush() : null;
+    }
+
+    // Parity for a partly filled block, so the tail of the file is covered too.
+    public ByteBuffer flush() {
+        if (count == 0) {
+            return null;
+        }
+        ByteBuffer frame = Envelope.allocate(Envelope.TYPE_PARITY, 0, streamId, count, offsets[0],
+                2 + count * 14 + parityLength);
+        frame.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            frame.putLong(offsets[i]);
+            frame.putInt(lengths[i]);
+            frame.putShort(flags[i]);
+        }
+        frame.put(parity.array(), 0, parityLength);
+        frame.flip();
+
+        Arrays.fill(parity.array(), 0, parityLength, (byte) 0);
+        parityLength = 0;
+        count = 0;
+        return frame;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.protegotinyever.webrtc;
+
+import android.util.Log;
+
+import org.webrtc.DataChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Owns everything sent to one peer. Frames come in three priority classes, each
+// with its own channel:
+//  - control (heartbeats, ACKs, transfer setup), always sent first
+//  - interactive (chat text), sent before any further file data
+//  - bulk (file chunks), one frame per stream in turn, each on whichever bulk channel
+//    has the least buffered and is under its flow control watermark
+// Control and interactive frames never wait for the bulk watermark, and since they
+// do not share a channel buffer with file data they are not queued behind it either.
+// Bulk frames are striped over up to bulkChannels.size() channels, as many as the
+// StripeTuner finds worth using; the receiver puts chunks back together by offset.
+public class SendScheduler {
+    private static final String TAG = "SendScheduler";
+    // Frames a bulk stream may have queued; its producer blocks beyond this. So once
+    // sendBulk returns, every frame queued that many calls earlier has been sent.
+    static final int MAX_QUEUED_PER_STREAM = 2;
+
+    private final DataChannel controlChannel;
+    private final DataChannel chatChannel;
+    private final List<DataChannel> bulkChannels;
+    private final List<FlowControl> flowControls; // One per bulk channel, same order
+    private final StripeTuner stripeTuner;
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> interactive = new ArrayDeque<>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> streams = new HashMap<>();
+    private final ArrayDeque<Integer> ready = new ArrayDeque<>(); // Streams with queued frames, in turn order
+    private final Thread senderThread;
+    private IOException failure;
+    private boolean closed = false;
+
+    public SendScheduler(DataChannel controlChannel, DataChannel chatChannel, List<DataChannel> bulkChannels,
+                         List<FlowControl> flowControls, String peerUsername) {
+        this.controlChannel = controlChannel;
+        this.chatChannel = chatChannel;
+        this.bulkChannels = bulkChannels;
+        this.flowControls = flowControls;
+        this.stripeTuner = new StripeTuner(bulkChannels.size());
+        for (FlowControl flowControl : flowControls) {
+            flowControl.setWritableListener(() -> {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            });
+        }
+        this.senderThread = new Thread(this::sendLoop, "SendScheduler-" + peerUsername);
+        this.senderThread.start();
+    }
+
+    public void sendControl(ByteBuffer frame) throws IOException {
+        enqueue(control, frame);
+    }
+
+    public void sendInteractive(ByteBuffer frame) throws IOException {
+        enqueue(interactive, frame);
+    }
+
+    private void enqueue(ArrayDeque<ByteBuffer> queue, ByteBuffer frame) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            queue.addLast(frame);
+            lock.notifyAll();
+        }
+    }
+
+    // Blocks while the stream already has MAX_QUEUED_PER_STREAM frames waiting.
+    public void sendBulk(int streamId, ByteBuffer frame) throws IOException, InterruptedException {
+        synchronized (lock) {
+            ArrayDeque<ByteBuffer> queue = streams.computeIfAbsent(streamId, id -> new ArrayDeque<>());
+            while (queue.size() >= MAX_QUEUED_PER_STREAM && !closed) {
+                lock.wait();
+            }
+            checkOpen();
+            if (queue.isEmpty()) {
+                ready.addLast(streamId);
+            }
+            queue.addLast(frame);
+            lock.notifyAll();
+        }
+    }
+
+    public void removeStream(int streamId) {
+        synchronized (lock) {
+            streams.remove(streamId);
+            ready.remove(streamId);
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        senderThread.interrupt();
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Send scheduler closed");
+        }
+    }
+
+    private void sendLoop() {
+        try {
+            while (true) {
+                ByteBuffer frame;
+                DataChannel channel;
+                int streamId = -1;
+                synchronized (lock) {
+                    while (true) {
+                        if (closed || anyBulkClosed()) {
+                            closed = true;
+                            lock.notifyAll();
+                            return;
+                        }
+                        if (!control.isEmpty()) {
+                            frame = control.pollFirst();
+                            channel = controlChannel;
+                            break;
+                        }
+                        if (!interactive.isEmpty()) {
+                            frame = interactive.pollFirst();
+                            channel = chatChannel;
+                            break;
+                        }
+                        if (!ready.isEmpty()) {
+                            int lane = pickBulkLane();
+                            if (lane >= 0) {
+                                streamId = ready.pollFirst();
+                                frame = streams.get(streamId).peekFirst();
+                                channel = bulkChannels.get(lane);
+                                break;
+                            }
+                            stripeTuner.onSaturated();
+                        }
+                        // Woken by new frames or by the channel draining
+                        lock.wait(ready.isEmpty() ? 0 : FlowControl.MAX_WAIT_MS);
+                    }
+                }
+
+                int frameSize = frame.remaining();
+                if (!channel.send(new DataChannel.Buffer(frame, true))) {
+                    fail(new IOException("Failed to send frame on " + channel.label()));
+                    return;
+                }
+
+                if (streamId >= 0) {
+                    stripeTuner.onChunkSent(frameSize);
+                    synchronized (lock) {
+                        ArrayDeque<ByteBuffer> queue = streams.get(streamId);
+                        if (queue != null) {
+                            queue.pollFirst();
+                            // Back of the line, behind every other stream with data waiting
+                            if (!queue.isEmpty()) {
+                                ready.addLast(streamId);
+                            }
+                        }
+                        lock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The least-buffered writable channel within the current stripe width, or -1.
+    private int pickBulkLane() {
+        int lane = -1;
+        long leastBuffered = Long.MAX_VALUE;
+        for (int i = 0; i < stripeTuner.getWidth(); i++) {
+            if (!flowControls.get(i).isWritable()) {
+                continue;
+            }
+            long buffered = bulkChannels.get(i).bufferedAmount();
+            if (buffered < leastBuffered) {
+                leastBuffered = buffered;
+                lane = i;
+            }
+        }
+        return lane;
+    }
+
+    private boolean anyBulkClosed() {
+        for (FlowControl flowControl : flowControls) {
+            if (flowControl.isClosed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, e.getMessage());
+        synchronized (lock) {
+            failure = e;
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.protegotinyever.webrtc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+// Chunks of one outgoing stream that were sent but not yet selectively acknowledged.
+// Bulk channels are unordered and never retransmit, so a chunk dropped on the wire is
+// only recovered from here. The receiver periodically sends a SACK: the offset of its
+// first missing byte plus a bitmap of the units it holds past that point. A chunk is
+// declared lost once REORDER_THRESHOLD chunks sent after it have been acknowledged,
+// or when nothing at all is acknowledged for a retransmission timeout.
+// The share of chunks lost on the wire, including those the receiver rebuilt from
+// parity, is tracked for ParityEncoder. Acknowledged chunks are handed back through
+// takeAcked so their frames can be reused.
+public class SendWindow {
+    public static final long MAX_IN_FLIGHT_BYTES = 8 * 1024 * 1024;
+    // Striped lanes reorder a little, so a few later chunks overtaking one is not a loss
+    private static final int REORDER_THRESHOLD = 8;
+    private static final long MIN_RTO_NANOS = 1_000_000_000L;
+    private static final long MAX_RTO_NANOS = 8_000_000_000L;
+    private static final long STALL_TIMEOUT_NANOS = 30_000_000_000L;
+
+    private final TreeMap<Long, InFlight> inFlight = new TreeMap<>(); // By offset
+    private final ArrayDeque<InFlight> lost = new ArrayDeque<>();
+    private final ArrayDeque<InFlight> ackedChunks = new ArrayDeque<>();
+    private long inFlightBytes;
+    private long ackedOffset;
+    private long nextSendOrder;
+    private long highestAckedOrder = -1;
+    private long lastProgressNanos = System.nanoTime();
+    private long lastTimeoutNanos = lastProgressNanos;
+    private int timeouts;
+    private int sentChunks;
+    private int lostChunks;
+    private int repairedChunks;
+
+    public SendWindow(long startOffset) {
+        this.ackedOffset = startOffset;
+    }
+
+    public synchronized boolean hasRoom(int length) {
+        return inFlight.isEmpty() || inFlightBytes + length <= MAX_IN_FLIGHT_BYTES;
+    }
+
+    public synchronized boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    // Offset up to which the receiver has acknowledged every byte.
+    public synchronized long getAckedOffset() {
+        return ackedOffset;
+    }
+
+    // Records a new chunk about to be handed to the scheduler. frame must stay untouched
+    // until the chunk comes back from takeAcked; every send goes out as a duplicate of it.
+    public synchronized InFlight onSent(long offset, int length, ByteBuffer frame) {
+        InFlight chunk = new InFlight(offset, length, frame);
+        inFlight.put(offset, chunk);
+        inFlightBytes += length;
+        countSent();
+        chunk.sendOrder = nextSendOrder++;
+        return chunk;
+    }
+
+    // Records a retransmission; false if the chunk was acknowledged meanwhile and must not be sent.
+    public synchronized boolean onResent(InFlight chunk) {
+        if (inFlight.get(chunk.offset) != chunk) {
+            return false;
+        }
+        chunk.sendOrder = nextSendOrder++;
+        chunk.lost = false;
+        return true;
+    }
+
+    // Moves the chunks acknowledged since the last call into chunks.
+    public synchronized void takeAcked(Collection<InFlight> chunks) {
+        chunks.addAll(ackedChunks);
+        ackedChunks.clear();
+    }
+
+    // Chunks to send again, oldest first; each must be passed back through onResent.
+    public synchronized List<InFlight> takeLost() {
+        if (lost.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<InFlight> chunks = new ArrayList<>(lost.size());
+        for (InFlight chunk : lost) {
+            if (chunk.lost && inFlight.get(chunk.offset) == chunk) {
+                chunks.add(chunk);
+            }
+        }
+        lost.clear();
+        return chunks;
+    }
+
+    public synchronized double lossRate() {
+        return sentChunks == 0 ? 0 : (double) lostChunks / sentChunks;
+    }
+
+    // Called from the network thread; bits holds one bit per ChunkSizer.UNIT starting at
+    // ackOffset, repaired is the receiver's running count of chunks rebuilt from parity.
+    public synchronized void onSack(long ackOffset, int repaired, ByteBuffer bits) {
+        if (repaired > repairedChunks) {
+            lostChunks += repaired - repairedChunks;
+            repairedChunks = repaired;
+        }
+        boolean progress = false;
+        if (ackOffset > ackedOffset) {
+            ackedOffset = ackOffset;
+            progress = true;
+        }
+        long firstUnit = ackOffset / ChunkSizer.UNIT;
+        long bitCount = (long) bits.remaining() * 8;
+        Iterator<InFlight> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            InFlight chunk = iterator.next();
+            boolean acked = chunk.offset + chunk.length <= ackOffset;
+            if (!acked && chunk.offset >= ackOffset) {
+                long first = chunk.offset / ChunkSizer.UNIT - firstUnit;
+                long last = (chunk.offset + chunk.length + ChunkSizer.UNIT - 1) / ChunkSizer.UNIT - firstUnit;
+                acked = last <= bitCount && allSet(bits, (int) first, (int) last);
+            }
+            if (acked) {
+                iterator.remove();
+                ackedChunks.addLast(chunk);
+                inFlightBytes -= chunk.length;
+                highestAckedOrder = Math.max(highestAckedOrder, chunk.sendOrder);
+                progress = true;
+            }
+        }
+        for (InFlight chunk : inFlight.values()) {
+            // A chunk with parity gets until its whole block is through, so the receiver can rebuild it first
+            int threshold = chunk.parityProtected ? REORDER_THRESHOLD + ParityEncoder.MAX_BLOCK : REORDER_THRESHOLD;
+            if (!chunk.lost && chunk.sendOrder + threshold <= highestAckedOrder) {
+                markLost(chunk);
+                lostChunks++;
+            }
+        }
+        if (progress) {
+            lastProgressNanos = System.nanoTime();
+            lastTimeoutNanos = lastProgressNanos;
+            timeouts = 0;
+        }
+        notifyAll();
+    }
+
+    // Waits up to maxWaitMs for an acknowledgement. On a retransmission timeout every
+    // chunk still in flight is declared lost; IOException once the peer has gone silent.
+    public synchronized void await(long maxWaitMs, long rttNanos) throws IOException, InterruptedException {
+        if (lost.isEmpty()) {
+            wait(maxWaitMs);
+        }
+        long now = System.nanoTime();
+        if (!inFlight.isEmpty() && now - lastProgressNanos > STALL_TIMEOUT_NANOS) {
+            throw new IOException("No acknowledgement for " + (STALL_TIMEOUT_NANOS / 1_000_000_000L) + " s");
+        }
+        if (!inFlight.isEmpty() && now - lastTimeoutNanos > retransmissionTimeout(rttNanos, timeouts)) {
+            for (InFlight chunk : inFlight.values()) {
+                if (!chunk.lost) {
+                    markLost(chunk);
+                }
+            }
+            lastTimeoutNanos = now;
+            timeouts++;
+        }
+    }
+
+    // Four RTTs, at least MIN_RTO_NANOS, doubled for each timeout in a row up to MAX_RTO_NANOS.
+    static long retransmissionTimeout(long rttNanos, int timeouts) {
+        return Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, 4 * rttNanos) << Math.min(timeouts, 3));
+    }
+
+    // Counts decay so the loss rate follows the link as it changes.
+    private void countSent() {
+        if (++sentChunks > 1024) {
+            sentChunks /= 2;
+            lostChunks /= 2;
+        }
+    }
+
+    private void markLost(InFlight chunk) {
+        chunk.lost = true;
+        lost.addLast(chunk);
+    }
+
+    private static boolean allSet(ByteBuffer bits, int first, int last) {
+        int base = bits.position();
+        for (int bit = first; bit < last; bit++) {
+            if ((bits.get(base + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static final class InFlight {
+        final long offset;
+        final int length;
+        final ByteBuffer frame;
+        final boolean parityProtected;
+        long sendOrder;
+        boolean lost;
+        long queuedAt; // Sender's count of bulk frames queued when this was last queued; only its thread uses it
+
+        InFlight(long offset, int length, ByteBuffer frame) {
+            this.offset = offset;
+            this.length = length;
+            this.frame = frame;
+            this.parityProtected = (Envelope.flags(frame) & Envelope.FLAG_FEC) != 0;
+        }
+    }
+}
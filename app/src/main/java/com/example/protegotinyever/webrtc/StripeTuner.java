@@ -0,0 +1,69 @@
+package com.example.protegotinyever.webrtc;
+
+// Picks how many of a peer's bulk channels file chunks are striped across. A single
+// SCTP stream is held back by its own send buffer, so another lane only helps while
+// every lane in use is backed up. The width grows while the active lanes are
+// saturated and throughput keeps rising, and drops back when a step bought nothing.
+// Only used from the send scheduler thread.
+public class StripeTuner {
+    private static final long WINDOW_NANOS = 500_000_000L;
+    private static final int HOLD_WINDOWS = 8; // Windows to wait before retrying a width that did not help
+
+    private final int maxWidth;
+    private int width = 1;
+    private long windowStart = -1;
+    private long windowBytes;
+    private double lastThroughput;
+    private boolean saturated;
+    private boolean widened;
+    private int holdWindows;
+
+    public StripeTuner(int maxWidth) {
+        this.maxWidth = Math.max(1, maxWidth);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    // Called when bulk data is waiting but every active lane is over its watermark.
+    public void onSaturated() {
+        saturated = true;
+    }
+
+    public void onChunkSent(int bytes) {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (windowStart < 0 || elapsed > 4 * WINDOW_NANOS) {
+            // First chunk, or the first after an idle spell that says nothing about the link
+            startWindow(now);
+            windowBytes = bytes;
+            return;
+        }
+        windowBytes += bytes;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        double throughput = windowBytes * 1e9 / elapsed;
+
+        if (widened && throughput < lastThroughput * 1.05) {
+            width--;
+            holdWindows = HOLD_WINDOWS;
+            widened = false;
+        } else if (saturated && width < maxWidth && holdWindows == 0) {
+            width++;
+            widened = true;
+        } else {
+            widened = false;
+            holdWindows = Math.max(0, holdWindows - 1);
+        }
+        lastThroughput = throughput;
+        startWindow(now);
+    }
+
+    private void startWindow(long now) {
+        windowStart = now;
+        windowBytes = 0;
+        saturated = false;
+    }
+}
@@ -5,37 +5,67 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.example.protegotinyever.adapt.MessageEntity;
+import com.example.protegotinyever.adapt.StoredFileEntity;
+import com.example.protegotinyever.adapt.TransferEntity;
+import com.example.protegotinyever.db.ChatDatabase;
+import com.example.protegotinyever.db.StoredFileDao;
+import com.example.protegotinyever.db.TransferDao;
 import com.example.protegotinyever.service.ConnectionManager;
 import com.example.protegotinyever.service.WebRTCService;
 import com.example.protegotinyever.util.CustomSdpObserver;
 import com.example.protegotinyever.util.DataChannelHandler;
 import com.example.protegotinyever.util.FirebaseClient;
 import com.example.protegotinyever.util.MessageEncryptor;
+import com.example.protegotinyever.util.SessionCipher;
 
 import org.webrtc.*;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WebRTCClient {
+    // Each side opens its own set of channels to the peer: control (heartbeats, acks,
+    // transfer setup), chat (text) and BULK_CHANNEL_COUNT bulk channels (file chunks,
+    // striped across them), labelled bulk-0, bulk-1, ...
+    public static final String CONTROL_CHANNEL = "control";
+    public static final String CHAT_CHANNEL = "chat";
+    public static final String BULK_CHANNEL_PREFIX = "bulk-";
+    public static final int BULK_CHANNEL_COUNT = 4;
     private static WebRTCClient instance;
     private Map<String, PeerConnection> peerConnections;
-    private Map<String, DataChannel> dataChannels;
+    private Map<String, DataChannel> dataChannels; // Chat channels
+    private final Map<String, DataChannel> controlChannels = new ConcurrentHashMap<>();
+    private final Map<String, List<DataChannel>> bulkChannels = new ConcurrentHashMap<>();
     private PeerConnectionFactory peerConnectionFactory;
     private FirebaseClient firebaseClient;
     private String currentPeerUsername;
@@ -48,11 +78,37 @@ public class WebRTCClient {
     private boolean isBackgroundMode = false;
     private WebRTCService webRTCService;
     private DataChannelHandler dataChannelHandler;
-    private static final int CHUNK_SIZE = 16384; // 16 KB chunks
     private static final int BUFFER_SIZE = 8 * 1024 * 1024; // 16 MB buffer (reference)
-    private Map<String, Long> lastSentOffsets = new HashMap<>();
-    private Map<String, String> pendingFileTransfers = new HashMap<>();
+    private static final long HIGH_WATERMARK = BUFFER_SIZE / 2; // Pause sending above this
+    private static final long LOW_WATERMARK = BUFFER_SIZE / 8; // Resume sending below this
+    private Map<String, List<FlowControl>> flowControls = new HashMap<>(); // One per bulk channel
+    private final Map<String, SendScheduler> sendSchedulers = new ConcurrentHashMap<>();
+    private final Set<SendScheduler> openSchedulers = ConcurrentHashMap.newKeySet(); // Peers whose channels have all opened
+    // File streams being received, per peer; FILE_META and chunks arrive on different channels
+    private final Map<String, Map<Integer, FileReceiver>> incomingStreams = new ConcurrentHashMap<>();
+    private final Map<String, Long> peerRttNanos = new ConcurrentHashMap<>();
+    private final Map<String, SessionCipher.Handshake> handshakes = new ConcurrentHashMap<>();
+    private final Map<String, SessionCipher> sessions = new ConcurrentHashMap<>(); // Message keys for the current connection
+    private final Map<String, CompletableFuture<SessionCipher>> sessionConfirmations = new ConcurrentHashMap<>();
+    private final Set<String> readyPeers = ConcurrentHashMap.newKeySet(); // Queued texts and transfers released this connection
+    private final Set<String> legacyPeers = ConcurrentHashMap.newKeySet(); // Sent no handshake; they get the self-keyed formats
+    private static final long HANDSHAKE_TIMEOUT_MS = 5_000;
+    private static final long RESUME_TIMEOUT_MS = 10_000;
+    private static final int MAX_CONCURRENT_TRANSFERS = 4;
+    // Parity frames for lossy links; ParityEncoder only adds them once loss is measured
+    private static final boolean FEC_ENABLED = true;
+    private final TransferDao transferDao;
+    private final StoredFileDao storedFileDao;
+    private final Map<Integer, CompletableFuture<Boolean>> haveOffers = new ConcurrentHashMap<>(); // Does the peer already hold the content
+    private final Map<Integer, CompletableFuture<byte[]>> resumeOffers = new ConcurrentHashMap<>();
+    private final Map<Integer, SendWindow> sendWindows = new ConcurrentHashMap<>(); // Outgoing streams awaiting SACKs
+    private final Set<String> activeTransfers = ConcurrentHashMap.newKeySet();
+    private final Set<String> awaitingAck = ConcurrentHashMap.newKeySet(); // Fully sent, not yet saved by the peer
     private final ExecutorService fileWriterExecutor = Executors.newSingleThreadExecutor(); // For offloading file writes
+    private final ExecutorService transferExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_TRANSFERS); // Runs outgoing transfers
+    private final ExecutorService incomingExecutor = Executors.newSingleThreadExecutor(); // Opens incoming transfers, in arrival order
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private final AtomicInteger messageSeq = new AtomicInteger();
 
     public static WebRTCClient getInstance(Context context, FirebaseClient firebaseClient) {
         if (instance == null) {
@@ -71,6 +127,8 @@ public class WebRTCClient {
         this.dataChannels = new HashMap<>();
         this.hasSentOffers = new HashMap<>();
         this.dataChannelHandler = DataChannelHandler.getInstance(context);
+        this.transferDao = ChatDatabase.getInstance(context).transferDao();
+        this.storedFileDao = ChatDatabase.getInstance(context).storedFileDao();
         initializePeerConnectionFactory(context);
         listenForSignaling();
     }
@@ -182,10 +240,12 @@ public class WebRTCClient {
                 public void onRemoveStream(MediaStream mediaStream) {}
                 @Override
                 public void onDataChannel(DataChannel dataChannel) {
-                    Log.d("WebRTC", "DataChannel received for peer: " + peerUsername);
-                    dataChannelHandler.setCurrentPeer(peerUsername);
-                    dataChannelHandler.setDataChannel(dataChannel);
-                    setupDataChannelObserver(dataChannel, peerUsername);
+                    Log.d("WebRTC", "DataChannel " + dataChannel.label() + " received for peer: " + peerUsername);
+                    if (CHAT_CHANNEL.equals(dataChannel.label())) {
+                        dataChannelHandler.setCurrentPeer(peerUsername);
+                        dataChannelHandler.setDataChannel(dataChannel);
+                    }
+                    setupDataChannelObserver(dataChannel, peerUsername, false, null);
                 }
                 @Override
                 public void onRenegotiationNeeded() {}
@@ -195,181 +255,570 @@ public class WebRTCClient {
                 public void onTrack(RtpTransceiver transceiver) {}
             });
 
+            // Control and chat are reliable and ordered. Bulk channels are neither: SCTP never
+            // retransmits a file chunk, the SACK layer (SendWindow) recovers lost ones instead
             DataChannel.Init init = new DataChannel.Init();
-            init.maxRetransmits = 0;
             init.ordered = true;
-            DataChannel dataChannel = peerConnection.createDataChannel("chat", init);
+            DataChannel.Init bulkInit = new DataChannel.Init();
+            bulkInit.ordered = false;
+            bulkInit.maxRetransmits = 0;
+            DataChannel controlChannel = peerConnection.createDataChannel(CONTROL_CHANNEL, init);
+            DataChannel dataChannel = peerConnection.createDataChannel(CHAT_CHANNEL, init);
+            List<DataChannel> peerBulkChannels = new ArrayList<>();
+            List<FlowControl> peerFlowControls = new ArrayList<>();
+            for (int i = 0; i < BULK_CHANNEL_COUNT; i++) {
+                DataChannel bulkChannel = peerConnection.createDataChannel(BULK_CHANNEL_PREFIX + i, bulkInit);
+                peerBulkChannels.add(bulkChannel);
+                peerFlowControls.add(new FlowControl(bulkChannel, HIGH_WATERMARK, LOW_WATERMARK));
+            }
             peerConnections.put(peerUsername, peerConnection);
+            controlChannels.put(peerUsername, controlChannel);
             dataChannels.put(peerUsername, dataChannel);
+            bulkChannels.put(peerUsername, peerBulkChannels);
+            flowControls.put(peerUsername, peerFlowControls);
+            sendSchedulers.put(peerUsername, new SendScheduler(controlChannel, dataChannel, peerBulkChannels, peerFlowControls, peerUsername));
             hasSentOffers.put(peerUsername, false);
             dataChannelHandler.setCurrentPeer(peerUsername);
             dataChannelHandler.setDataChannel(dataChannel);
-            setupDataChannelObserver(dataChannel, peerUsername);
+            setupDataChannelObserver(controlChannel, peerUsername, true, null);
+            setupDataChannelObserver(dataChannel, peerUsername, true, null);
+            for (int i = 0; i < BULK_CHANNEL_COUNT; i++) {
+                setupDataChannelObserver(peerBulkChannels.get(i), peerUsername, true, peerFlowControls.get(i));
+            }
         }
     }
 
-    private void setupDataChannelObserver(DataChannel dataChannel, String peerUsername) {
+    // local is true for the channels this side created and sends on; flowControl is
+    // only set for the local bulk channels.
+    private void setupDataChannelObserver(DataChannel dataChannel, String peerUsername, boolean local, FlowControl flowControl) {
         dataChannel.registerObserver(new DataChannel.Observer() {
-            private String fileName;
-            private String fileType;
-            private long totalLength = -1;
-            private File tempFile;
-            private FileOutputStream fos;
-            private int chunksReceived = 0;
-            private long lastReceivedOffset = -1;
+            private final Map<Integer, FileReceiver> fileReceivers = incomingStreams.computeIfAbsent(peerUsername, peer -> new ConcurrentHashMap<>());
 
             @Override
             public void onBufferedAmountChange(long previousAmount) {
-                long currentBuffer = dataChannel.bufferedAmount();
-                Log.d("WebRTCClient", "Buffered amount changed for " + peerUsername + ": " + previousAmount + ", current: " + currentBuffer);
-                if (currentBuffer > BUFFER_SIZE * 0.75) {
-                    Log.w("WebRTCClient", "Buffer nearing capacity for " + peerUsername + ": " + currentBuffer);
+                if (flowControl != null) {
+                    flowControl.onBufferedAmountChange(dataChannel.bufferedAmount());
                 }
             }
 
             @Override
             public void onStateChange() {
-                Log.d("WebRTCClient", "DataChannel state changed for " + peerUsername + ": " + dataChannel.state());
-                onDataChannelStateChange(peerUsername, dataChannel.state());
+                DataChannel.State state = dataChannel.state();
+                Log.d("WebRTCClient", "DataChannel " + dataChannel.label() + " state changed for " + peerUsername + ": " + state);
+                if (state != DataChannel.State.OPEN && state != DataChannel.State.CONNECTING) {
+                    if (flowControl != null) {
+                        flowControl.close();
+                    }
+                    if (local) {
+                        SendScheduler scheduler = sendSchedulers.get(peerUsername);
+                        if (scheduler != null) {
+                            scheduler.close();
+                        }
+                        // The next connection agrees on fresh keys
+                        forgetSession(peerUsername);
+                    }
+                    // Keep the pending entries; the sender resumes them on the next connection
+                    for (FileReceiver receiver : fileReceivers.values()) {
+                        receiver.abort();
+                    }
+                    fileReceivers.clear();
+                }
+                if (!local) {
+                    return;
+                }
+                if (state == DataChannel.State.OPEN) {
+                    onLocalChannelOpen(peerUsername);
+                } else if (CHAT_CHANNEL.equals(dataChannel.label())) {
+                    onDataChannelStateChange(peerUsername, state);
+                }
             }
 
             @Override
             public void onMessage(DataChannel.Buffer buffer) {
-                byte[] data = new byte[buffer.data.remaining()];
-                buffer.data.get(data);
-                Log.d("WebRTCClient", "Received data from " + peerUsername + ", length: " + data.length);
+                ByteBuffer data = buffer.data;
+                if (Envelope.hasMagic(data) && !Envelope.isEnvelope(data)) {
+                    Log.w("WebRTCClient", "Dropping envelope version " + Envelope.version(data) + " from " + peerUsername
+                            + "; this side speaks version " + Envelope.VERSION);
+                    return;
+                }
+                int frameStreamId = Envelope.isEnvelope(data) ? Envelope.streamId(data) : 0;
 
                 try {
-                    String header = new String(data, 0, Math.min(100, data.length), "UTF-8");
-                    if (header.startsWith("FILE:")) {
-                        String[] parts = header.split(":", 5);
-                        fileName = parts[1];
-                        fileType = parts[2];
-                        totalLength = Long.parseLong(parts[3]);
-                        tempFile = File.createTempFile("recv_", fileName, context.getCacheDir());
-                        fos = new FileOutputStream(tempFile);
-                        chunksReceived = 0;
-                        lastReceivedOffset = -1;
-                        Log.d("WebRTCClient", "Received file metadata from " + peerUsername + ": " + header);
-                    } else if (header.startsWith("CHUNK:") && totalLength != -1) {
-                        String[] parts = header.split(":", 4);
-                        long chunkTotalLength = Long.parseLong(parts[1]);
-                        int offset = Integer.parseInt(parts[2]);
-                        int headerLength = parts[0].length() + parts[1].length() + parts[2].length() + 3;
-                        byte[] chunkData = new byte[data.length - headerLength];
-                        System.arraycopy(data, headerLength, chunkData, 0, chunkData.length);
-
-                        if (offset <= lastReceivedOffset) {
-                            Log.w("WebRTCClient", "Duplicate chunk received from " + peerUsername + " at offset: " + offset + ", skipping");
-                            return;
-                        }
-
-                        if (progressListener != null) {
-                            int totalChunks = (int) Math.ceil((double) totalLength / CHUNK_SIZE);
-                            int decryptProgress = (int) ((chunksReceived + 0.5) * 100 / totalChunks);
-                            progressListener.onProgress("Decrypting", decryptProgress, fileName);
-                        }
-                        byte[] decryptedChunk = MessageEncryptor.decryptData(chunkData);
-                        chunksReceived++;
-                        lastReceivedOffset = offset;
-
-                        fileWriterExecutor.execute(() -> {
-                            try {
-                                fos.write(decryptedChunk);
-                                if (chunksReceived % 50 == 0) { // Flush more frequently (~800 KB)
-                                    fos.flush();
-                                    Log.d("WebRTCClient", "Flushed file output stream for " + peerUsername + " at offset: " + offset);
-                                }
-                                Log.d("WebRTCClient", "Received and wrote chunk from " + peerUsername + ", offset: " + offset + ", length: " + decryptedChunk.length);
-
-                                if (progressListener != null) {
-                                    int totalChunks = (int) Math.ceil((double) totalLength / CHUNK_SIZE);
-                                    int receiveProgress = (int) (chunksReceived * 100 / totalChunks);
-                                    progressListener.onProgress("Receiving", receiveProgress, fileName);
-                                }
+                    if (!Envelope.isEnvelope(data)) {
+                        // Peers that predate the envelope send bare encrypted text
+                        byte[] legacy = new byte[data.remaining()];
+                        data.get(legacy);
+                        deliverMessage(MessageEncryptor.decryptMessage(legacy));
+                        return;
+                    }
 
-                                if (offset + decryptedChunk.length >= totalLength) {
-                                    fos.flush();
-                                    fos.close();
-                                    File savedFile = saveFileToInternalStorage(tempFile, fileName, fileType, peerUsername);
-                                    if (!tempFile.delete()) {
-                                        Log.w("WebRTCClient", "Failed to delete temp file: " + tempFile.getAbsolutePath());
-                                    }
-                                    if (savedFile != null) {
-                                        String message = "Received file: " + fileName + " at " + savedFile.getAbsolutePath();
-                                        dataChannelHandler.onMessageReceived(peerUsername, message);
-                                        if (webrtcListener != null) {
-                                            webrtcListener.onMessageReceived(message, peerUsername);
-                                            dataChannel.send(new DataChannel.Buffer(ByteBuffer.wrap(("ACK:" + savedFile.getAbsolutePath() + ":" + fileName).getBytes("UTF-8")), true));
-                                            Log.d("WebRTCClient", "Sent ACK for file: " + fileName + " to " + peerUsername);
-                                        }
-                                    } else {
-                                        throw new IOException("Failed to save decrypted file");
-                                    }
-                                    fileName = null;
-                                    fileType = null;
-                                    totalLength = -1;
-                                    fos = null;
-                                    chunksReceived = 0;
-                                    lastReceivedOffset = -1;
+                    switch (Envelope.type(data)) {
+                        case Envelope.TYPE_FILE_META: {
+                            int streamId = Envelope.streamId(data);
+                            long totalLength = Envelope.offset(data);
+                            boolean sealedKey = (Envelope.flags(data) & Envelope.FLAG_SEALED_KEY) != 0;
+                            Envelope.skipHeader(data);
+                            String fileName = Envelope.getString(data);
+                            String fileType = Envelope.getString(data);
+                            String transferId = Envelope.getString(data);
+                            byte[] keyMaterial = new byte[MessageEncryptor.TransferCipher.KEY_MATERIAL_LENGTH];
+                            if (sealedKey) {
+                                openKeyMaterial(data, keyMaterial);
+                            } else if (sessions.containsKey(peerUsername)) {
+                                throw new GeneralSecurityException(peerUsername + " sent a transfer key unsealed after its handshake");
+                            } else {
+                                // Only a peer that predates the handshake sends the key in the clear
+                                data.get(keyMaterial);
+                            }
+                            byte[] merkleRoot = new byte[MerkleTree.HASH_SIZE];
+                            data.get(merkleRoot);
+                            FileReceiver previous = fileReceivers.remove(streamId);
+                            if (previous != null) {
+                                previous.abort();
+                            }
+                            // Room, MediaStore and the destination descriptor are disk work; keep them off this thread
+                            incomingExecutor.execute(() -> {
+                                try {
+                                    openIncomingStream(streamId, totalLength, fileName, fileType, transferId, keyMaterial, merkleRoot);
+                                } catch (Exception e) {
+                                    onStreamError(streamId, e);
                                 }
-                            } catch (IOException e) {
-                                Log.e("WebRTCClient", "Error writing chunk at offset " + offset + ": " + e.getMessage(), e);
+                            });
+                            break;
+                        }
+                        case Envelope.TYPE_GROUP_HASHES: {
+                            FileReceiver fileReceiver = fileReceivers.get(frameStreamId);
+                            if (fileReceiver == null) {
+                                break;
                             }
-                        });
-                    } else if (header.startsWith("ACK:")) {
-                        String[] parts = header.split(":", 3);
-                        String filePath = parts[1];
-                        String ackFileName = parts[2];
-                        if (webrtcListener != null) {
-                            webrtcListener.onFileSent(filePath, ackFileName);
-                            lastSentOffsets.remove(peerUsername);
-                            pendingFileTransfers.remove(peerUsername);
+                            int firstGroup = (int) Envelope.offset(data);
+                            Envelope.skipHeader(data);
+                            if (fileReceiver.onGroupHashes(firstGroup, data)) {
+                                startReceiving(fileReceiver);
+                            }
+                            break;
                         }
-                    } else if (header.startsWith("HEARTBEAT:")) {
-                        Log.d("WebRTCClient", "Received heartbeat from " + peerUsername);
-                        dataChannel.send(new DataChannel.Buffer(ByteBuffer.wrap("HEARTBEAT:ACK".getBytes("UTF-8")), true));
-                    } else {
-                        String message = MessageEncryptor.decryptMessage(data);
-                        Log.d("WebRTCClient", "Decrypted message from " + peerUsername + ": " + message);
-                        dataChannelHandler.onMessageReceived(peerUsername, message);
-                        if (webrtcListener != null) {
-                            webrtcListener.onMessageReceived(message, peerUsername);
+                        case Envelope.TYPE_LEAF_HASHES: {
+                            FileReceiver fileReceiver = fileReceivers.get(frameStreamId);
+                            if (fileReceiver != null) {
+                                int firstLeaf = (int) Envelope.offset(data);
+                                Envelope.skipHeader(data);
+                                fileReceiver.onLeafHashes(firstLeaf, data);
+                            }
+                            break;
                         }
+                        case Envelope.TYPE_HANDSHAKE: {
+                            Envelope.skipHeader(data);
+                            byte[] peerPublicKey = new byte[Math.min(data.remaining(), SessionCipher.PUBLIC_KEY_LENGTH)];
+                            data.get(peerPublicKey);
+                            byte[] echoedKey = null;
+                            if (data.hasRemaining()) {
+                                echoedKey = new byte[data.remaining()];
+                                data.get(echoedKey);
+                            }
+                            onHandshake(peerUsername, dataChannel, peerPublicKey, echoedKey);
+                            break;
+                        }
+                        case Envelope.TYPE_HAVE: {
+                            CompletableFuture<Boolean> offer = haveOffers.remove(frameStreamId);
+                            if (offer != null) {
+                                offer.complete(Envelope.offset(data) != 0);
+                            }
+                            break;
+                        }
+                        case Envelope.TYPE_RESUME: {
+                            CompletableFuture<byte[]> offer = resumeOffers.remove(Envelope.streamId(data));
+                            if (offer != null) {
+                                Envelope.skipHeader(data);
+                                byte[] bits = new byte[data.remaining()];
+                                data.get(bits);
+                                offer.complete(bits);
+                            }
+                            break;
+                        }
+                        case Envelope.TYPE_SACK: {
+                            SendWindow sendWindow = sendWindows.get(frameStreamId);
+                            if (sendWindow != null) {
+                                long ackOffset = Envelope.offset(data);
+                                int repaired = Envelope.seq(data);
+                                Envelope.skipHeader(data);
+                                sendWindow.onSack(ackOffset, repaired, data);
+                            }
+                            break;
+                        }
+                        case Envelope.TYPE_CHUNK: {
+                            FileReceiver fileReceiver = fileReceivers.get(frameStreamId);
+                            if (fileReceiver == null) {
+                                Log.w("WebRTCClient", "Chunk for unknown stream " + frameStreamId + " from " + peerUsername + ", dropping");
+                                return;
+                            }
+                            long offset = Envelope.offset(data);
+                            int flags = Envelope.flags(data);
+                            Envelope.skipHeader(data);
+                            fileReceiver.onChunk(offset, flags, data);
+                            break;
+                        }
+                        case Envelope.TYPE_PARITY: {
+                            FileReceiver fileReceiver = fileReceivers.get(frameStreamId);
+                            if (fileReceiver != null) {
+                                Envelope.skipHeader(data);
+                                fileReceiver.onParity(data);
+                            }
+                            break;
+                        }
+                        case Envelope.TYPE_ACK: {
+                            Envelope.skipHeader(data);
+                            String filePath = Envelope.getString(data);
+                            String ackFileName = Envelope.getString(data);
+                            String ackTransferId = Envelope.getString(data);
+                            completeOutgoingTransfer(ackTransferId);
+                            if (webrtcListener != null) {
+                                webrtcListener.onFileSent(filePath, ackFileName);
+                            }
+                            break;
+                        }
+                        case Envelope.TYPE_HEARTBEAT:
+                            Log.d("WebRTCClient", "Received heartbeat from " + peerUsername);
+                            sendControl(peerUsername, dataChannel, Envelope.control(Envelope.TYPE_HEARTBEAT_ACK, 0, 0, Envelope.offset(data)));
+                            break;
+                        case Envelope.TYPE_HEARTBEAT_ACK:
+                            // The heartbeat carries our send timestamp in the offset field
+                            peerRttNanos.put(peerUsername, System.nanoTime() - Envelope.offset(data));
+                            break;
+                        case Envelope.TYPE_MESSAGE: {
+                            Envelope.skipHeader(data);
+                            if (!SessionCipher.isSessionMessage(data)) {
+                                byte[] encrypted = new byte[data.remaining()];
+                                data.get(encrypted);
+                                deliverMessage(MessageEncryptor.decryptMessage(encrypted));
+                                break;
+                            }
+                            SessionCipher session = sessions.get(peerUsername);
+                            if (session == null) {
+                                throw new GeneralSecurityException("No session keys for " + peerUsername);
+                            }
+                            // Straight from the channel's buffer into the bytes the text is decoded from
+                            byte[] plaintext = new byte[SessionCipher.plaintextLength(data.remaining())];
+                            int length = session.decrypt(data, ByteBuffer.wrap(plaintext));
+                            deliverMessage(new String(plaintext, 0, length, StandardCharsets.UTF_8));
+                            break;
+                        }
+                        default:
+                            Log.w("WebRTCClient", "Unknown envelope type " + Envelope.type(data) + " from " + peerUsername);
                     }
                 } catch (Exception e) {
-                    Log.e("WebRTCClient", "Error processing message from " + peerUsername + " at offset " + lastReceivedOffset + ": " + e.getMessage(), e);
-                    new android.os.Handler(android.os.Looper.getMainLooper()).post(() ->
-                            Toast.makeText(context, "Failed to process message: " + e.getMessage(), Toast.LENGTH_LONG).show()
-                    );
+                    onStreamError(frameStreamId, e);
+                }
+            }
+
+            // Opens the sealed key material at the buffer's position into keyMaterial and moves past it.
+            private void openKeyMaterial(ByteBuffer data, byte[] keyMaterial) throws GeneralSecurityException {
+                SessionCipher session = sessions.get(peerUsername);
+                if (session == null) {
+                    throw new GeneralSecurityException("No session keys for " + peerUsername);
+                }
+                int sealedLength = SessionCipher.sealedLength(keyMaterial.length);
+                ByteBuffer sealed = data.duplicate();
+                sealed.limit(sealed.position() + sealedLength);
+                if (session.decrypt(sealed, ByteBuffer.wrap(keyMaterial)) != keyMaterial.length) {
+                    throw new GeneralSecurityException("Invalid transfer key material from " + peerUsername);
+                }
+                data.position(data.position() + sealedLength);
+            }
+
+            private void onStreamError(int streamId, Exception e) {
+                Log.e("WebRTCClient", "Error processing message from " + peerUsername + ": " + e.getMessage(), e);
+                new android.os.Handler(android.os.Looper.getMainLooper()).post(() ->
+                        Toast.makeText(context, "Failed to process message: " + e.getMessage(), Toast.LENGTH_LONG).show()
+                );
+                FileReceiver fileReceiver = fileReceivers.remove(streamId);
+                if (fileReceiver != null) {
                     if (progressListener != null) {
-                        progressListener.onProgress("Error", 0, fileName);
+                        progressListener.onProgress("Error", 0, fileReceiver.getFileName());
                     }
-                    if (fos != null) {
-                        try {
-                            fos.close();
-                            if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
-                                Log.w("WebRTCClient", "Failed to delete temp file after error: " + tempFile.getAbsolutePath());
-                            }
-                        } catch (IOException ex) {
-                            Log.e("WebRTCClient", "Error closing temp file: " + ex.getMessage(), ex);
-                        }
+                    fileReceiver.abort();
+                }
+            }
+
+            // Runs on incomingExecutor. The receiver is registered before HAVE goes out, so the
+            // leaf hashes the sender answers with always find it.
+            private void openIncomingStream(int streamId, long totalLength, String fileName, String fileType, String transferId,
+                                            byte[] keyMaterial, byte[] merkleRoot) throws Exception {
+                StoredFileEntity stored = findStoredFile(merkleRoot, totalLength);
+                if (stored != null) {
+                    // Same content as a file we already saved: link to it, nothing is transferred
+                    sendControl(peerUsername, dataChannel, Envelope.control(Envelope.TYPE_HAVE, streamId, 0, 1));
+                    Log.d("WebRTCClient", "Already have " + fileName + " from " + peerUsername + " as " + stored.getPath());
+                    discardIncomingTransfer(transferId);
+                    deliverReceivedFile(streamId, transferId, fileName, totalLength, stored.getPath());
+                    return;
+                }
+                TransferEntity transfer = openIncomingTransfer(transferId, peerUsername, fileName, fileType, totalLength, merkleRoot);
+                Uri destination = Uri.parse(transfer.getUri());
+                ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(destination, "rw");
+                if (descriptor == null) {
+                    throw new IOException("Unable to open " + destination + " for writing");
+                }
+                // Stored units were verified before they were recorded, so any of them can be kept
+                ChunkBitmap chunkBitmap = new ChunkBitmap(totalLength, transfer.getChunkBitmap())
+                        .truncatedTo(descriptor.getStatSize());
+                FileReceiver fileReceiver = new FileReceiver(streamId, transferId, fileName, fileType, totalLength,
+                        MessageEncryptor.TransferCipher.fromKeyMaterial(keyMaterial), destination, descriptor,
+                        chunkBitmap, new MerkleTree(merkleRoot, totalLength), fileWriterExecutor,
+                        progressListener, fileReceiverCallback);
+                fileReceivers.put(streamId, fileReceiver);
+                if (!isOpen(dataChannel)) {
+                    // The connection dropped while the destination was opening
+                    fileReceivers.remove(streamId, fileReceiver);
+                    fileReceiver.abort();
+                    return;
+                }
+                sendControl(peerUsername, dataChannel, Envelope.control(Envelope.TYPE_HAVE, streamId, 0, 0));
+                Log.d("WebRTCClient", "Received file metadata from " + peerUsername + ": " + fileName + " (" + fileType + ", " + totalLength + " bytes, stream " + streamId + ", " + chunkBitmap.completedBytes() + " bytes held)");
+                if (MerkleTree.leafCount(totalLength) == 0) {
+                    if (!fileReceiver.isVerified()) {
+                        throw new IOException("Merkle root mismatch for empty file " + fileName);
                     }
+                    startReceiving(fileReceiver);
+                }
+            }
+
+            private void deliverReceivedFile(int streamId, String transferId, String fileName, long totalLength, String path) {
+                String message = "Received file: " + fileName + " at " + path;
+                dataChannelHandler.onMessageReceived(peerUsername, message);
+                if (webrtcListener != null) {
+                    webrtcListener.onMessageReceived(message, peerUsername);
+                }
+                ByteBuffer ack = Envelope.allocate(Envelope.TYPE_ACK, 0, streamId, 0, totalLength,
+                        Envelope.stringSize(path) + Envelope.stringSize(fileName) + Envelope.stringSize(transferId));
+                Envelope.putString(ack, path);
+                Envelope.putString(ack, fileName);
+                Envelope.putString(ack, transferId);
+                ack.flip();
+                sendControl(peerUsername, dataChannel, ack);
+                Log.d("WebRTCClient", "Sent ACK for file: " + fileName + " to " + peerUsername);
+            }
+
+            // Tells the sender which units are already here; it sends the rest.
+            private void startReceiving(FileReceiver fileReceiver) {
+                ChunkBitmap chunkBitmap = fileReceiver.getChunkBitmap();
+                sendControl(peerUsername, dataChannel, Envelope.wrap(Envelope.TYPE_RESUME, 0, fileReceiver.getStreamId(), 0,
+                        chunkBitmap.contiguousBytes(), chunkBitmap.toByteArray()));
+                fileReceiver.start();
+            }
+
+            private void deliverMessage(String message) {
+                Log.d("WebRTCClient", "Decrypted message from " + peerUsername + ": " + message);
+                dataChannelHandler.onMessageReceived(peerUsername, message);
+                if (webrtcListener != null) {
+                    webrtcListener.onMessageReceived(message, peerUsername);
                 }
             }
+
+            private final FileReceiver.Callback fileReceiverCallback = new FileReceiver.Callback() {
+                @Override
+                public void onCheckpoint(FileReceiver receiver) {
+                    transferDao.updateProgress(receiver.getTransferId(), receiver.getChunkBitmap().toByteArray(), System.currentTimeMillis());
+                }
+
+                @Override
+                public void onSack(FileReceiver receiver, ByteBuffer sack) {
+                    sendControl(peerUsername, dataChannel, sack);
+                }
+
+                @Override
+                public void onFileReceived(FileReceiver receiver) throws IOException {
+                    fileReceivers.remove(receiver.getStreamId());
+                    String fileName = receiver.getFileName();
+                    byte[] merkleRoot = receiver.getMerkleRoot();
+                    StoredFileEntity stored = findStoredFile(merkleRoot, receiver.getTotalLength());
+                    String path;
+                    if (stored != null) {
+                        // The same content finished under another transfer meanwhile; keep one copy
+                        context.getContentResolver().delete(receiver.getDestination(), null, null);
+                        path = stored.getPath();
+                    } else {
+                        path = publishDownload(receiver.getDestination(), fileName, peerUsername).getAbsolutePath();
+                        storedFileDao.insert(new StoredFileEntity(MerkleTree.toHex(merkleRoot), receiver.getDestination().toString(),
+                                path, fileName, receiver.getTotalLength(), System.currentTimeMillis()));
+                    }
+                    transferDao.deleteTransfer(receiver.getTransferId());
+                    deliverReceivedFile(receiver.getStreamId(), receiver.getTransferId(), fileName, receiver.getTotalLength(), path);
+                }
+
+                @Override
+                public void onFileFailed(FileReceiver receiver, Exception e) {
+                    fileReceivers.remove(receiver.getStreamId());
+                    transferDao.updateProgress(receiver.getTransferId(), receiver.getChunkBitmap().toByteArray(), System.currentTimeMillis());
+                    new android.os.Handler(android.os.Looper.getMainLooper()).post(() ->
+                            Toast.makeText(context, "Failed to receive file: " + e.getMessage(), Toast.LENGTH_LONG).show()
+                    );
+                    if (progressListener != null) {
+                        progressListener.onProgress("Error", 0, receiver.getFileName());
+                    }
+                }
+            };
         });
+    }
 
+    // The peer counts as connected once all of our channels to it are open.
+    private void onLocalChannelOpen(String peerUsername) {
+        if (!isOpen(controlChannels.get(peerUsername)) || !isOpen(dataChannels.get(peerUsername))) {
+            return;
+        }
+        List<DataChannel> peerBulkChannels = bulkChannels.get(peerUsername);
+        if (peerBulkChannels == null) {
+            return;
+        }
+        for (DataChannel bulkChannel : peerBulkChannels) {
+            if (!isOpen(bulkChannel)) {
+                return;
+            }
+        }
+        SendScheduler scheduler = sendSchedulers.get(peerUsername);
+        if (scheduler == null || !openSchedulers.add(scheduler)) {
+            return;
+        }
         new Thread(() -> {
-            while (dataChannel.state() == DataChannel.State.OPEN) {
+            while (!scheduler.isClosed()) {
                 try {
-                    dataChannel.send(new DataChannel.Buffer(ByteBuffer.wrap("HEARTBEAT:".getBytes("UTF-8")), true));
+                    scheduler.sendControl(Envelope.control(Envelope.TYPE_HEARTBEAT, 0, 0, System.nanoTime()));
                     Thread.sleep(5000);
                 } catch (Exception e) {
                     Log.e("WebRTCClient", "Heartbeat failed for " + peerUsername + ": " + e.getMessage());
                     break;
                 }
             }
-        }).start();
+            openSchedulers.remove(scheduler);
+        }, "Heartbeat-" + peerUsername).start();
+        // The peer's key may have arrived first, in which case the session already exists
+        CompletableFuture<SessionCipher> confirmation = sessionConfirmations.computeIfAbsent(peerUsername, peer -> new CompletableFuture<>());
+        SessionCipher.Handshake handshake = handshakes.computeIfAbsent(peerUsername, peer -> new SessionCipher.Handshake());
+        SessionCipher session = sessions.get(peerUsername);
+        sendHandshake(peerUsername, controlChannels.get(peerUsername), handshake, session != null ? session.getPeerPublicKey() : null);
+        onDataChannelStateChange(peerUsername, DataChannel.State.OPEN);
+        if (session != null && session.isConfirmed()) {
+            onSessionReady(peerUsername);
+        } else {
+            new Thread(() -> awaitHandshake(peerUsername, scheduler, confirmation), "Handshake-" + peerUsername).start();
+        }
+    }
+
+    // A new peer key completes a session and is echoed back; the peer echoing our key for
+    // this connection confirms the session, and only then are messages and transfer keys
+    // sent under it.
+    private void onHandshake(String peerUsername, DataChannel dataChannel, byte[] peerPublicKey, byte[] echoedKey) throws GeneralSecurityException {
+        legacyPeers.remove(peerUsername);
+        SessionCipher session = sessions.get(peerUsername);
+        if (session == null || !session.hasPeerKey(peerPublicKey)) {
+            SessionCipher.Handshake handshake = handshakes.computeIfAbsent(peerUsername, peer -> new SessionCipher.Handshake());
+            session = handshake.complete(peerPublicKey);
+            sessions.put(peerUsername, session);
+            // A confirmation of the session this one replaces does not carry over
+            sessionConfirmations.compute(peerUsername, (peer, confirmation) ->
+                    confirmation == null || confirmation.isDone() ? new CompletableFuture<>() : confirmation);
+            sendHandshake(peerUsername, dataChannel, handshake, peerPublicKey);
+            Log.d("WebRTCClient", "Session keys agreed with " + peerUsername);
+        }
+        if (echoedKey != null && !session.isConfirmed() && session.confirm(echoedKey)) {
+            Log.d("WebRTCClient", "Session with " + peerUsername + " confirmed");
+            sessionConfirmations.computeIfAbsent(peerUsername, peer -> new CompletableFuture<>()).complete(session);
+            onSessionReady(peerUsername);
+        }
+    }
+
+    // Our public key, then the peer's when we hold it.
+    private void sendHandshake(String peerUsername, DataChannel fallback, SessionCipher.Handshake handshake, byte[] peerPublicKey) {
+        byte[] publicKey = handshake.getPublicKey();
+        byte[] payload = peerPublicKey != null ? Arrays.copyOf(publicKey, publicKey.length + peerPublicKey.length) : publicKey;
+        if (peerPublicKey != null) {
+            System.arraycopy(peerPublicKey, 0, payload, publicKey.length, peerPublicKey.length);
+        }
+        sendControl(peerUsername, fallback, Envelope.wrap(Envelope.TYPE_HANDSHAKE, 0, 0, 0, 0, payload));
+    }
+
+    // Runs on its own thread from onLocalChannelOpen. Only a peer that sends no handshake at
+    // all falls back to the self-keyed formats; one that sent a key but never confirms keeps
+    // its queued texts and transfers until the next connection.
+    private void awaitHandshake(String peerUsername, SendScheduler scheduler, CompletableFuture<SessionCipher> confirmation) {
+        try {
+            confirmation.get(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (scheduler.isClosed()) {
+                return;
+            }
+            if (sessions.containsKey(peerUsername)) {
+                Log.w("WebRTCClient", peerUsername + " has not confirmed the session, holding queued messages and transfers");
+                return;
+            }
+            Log.w("WebRTCClient", "No handshake from " + peerUsername + ", sending queued messages and transfers self-keyed");
+            legacyPeers.add(peerUsername);
+            onSessionReady(peerUsername);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            // The connection closed first
+        }
+    }
+
+    // Releases queued texts and transfers once per connection: the session is confirmed,
+    // or the peer predates the handshake. Waits for onLocalChannelOpen if the session
+    // was confirmed before all of our channels opened.
+    private void onSessionReady(String peerUsername) {
+        SendScheduler scheduler = sendSchedulers.get(peerUsername);
+        if (scheduler == null || !openSchedulers.contains(scheduler) || !readyPeers.add(peerUsername)) {
+            return;
+        }
+        deliverStoredMessages(peerUsername);
+        resumeOutgoingTransfers(peerUsername);
+    }
+
+    // The confirmed session, waiting up to HANDSHAKE_TIMEOUT_MS for it. Null only for a
+    // peer that sends no handshake, which takes transfer keys in the clear.
+    private SessionCipher awaitConfirmedSession(String peerUsername) throws IOException, InterruptedException {
+        if (legacyPeers.contains(peerUsername)) {
+            return null;
+        }
+        CompletableFuture<SessionCipher> confirmation = sessionConfirmations.computeIfAbsent(peerUsername, peer -> new CompletableFuture<>());
+        try {
+            return confirmation.get(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (!sessions.containsKey(peerUsername)) {
+                return null;
+            }
+            throw new IOException(peerUsername + " has not confirmed the session");
+        } catch (ExecutionException | CancellationException e) {
+            throw new IOException("Connection to " + peerUsername + " closed during the handshake");
+        }
+    }
+
+    private void forgetSession(String peerUsername) {
+        handshakes.remove(peerUsername);
+        sessions.remove(peerUsername);
+        legacyPeers.remove(peerUsername);
+        readyPeers.remove(peerUsername);
+        CompletableFuture<SessionCipher> confirmation = sessionConfirmations.remove(peerUsername);
+        if (confirmation != null) {
+            confirmation.cancel(false);
+        }
+    }
+
+    private static boolean isOpen(DataChannel dataChannel) {
+        return dataChannel != null && dataChannel.state() == DataChannel.State.OPEN;
+    }
+
+    // Control frames jump ahead of queued chat and file data on the peer's scheduler.
+    private void sendControl(String peerUsername, DataChannel fallback, ByteBuffer frame) {
+        SendScheduler scheduler = sendSchedulers.get(peerUsername);
+        if (scheduler == null || scheduler.isClosed()) {
+            fallback.send(new DataChannel.Buffer(frame, true));
+            return;
+        }
+        try {
+            scheduler.sendControl(frame);
+        } catch (IOException e) {
+            Log.e("WebRTCClient", "Failed to queue control frame for " + peerUsername + ": " + e.getMessage());
+        }
     }
 
     public void sendEncryptedMessage(String message, String peerUsername) {
@@ -383,7 +832,8 @@ public class WebRTCClient {
 
     public void sendEncryptedMessage(byte[] data, String peerUsername, boolean isFile, String fileName, String fileType) {
         DataChannel dataChannel = dataChannels.get(peerUsername);
-        if (dataChannel == null || dataChannel.state() != DataChannel.State.OPEN) {
+        SendScheduler scheduler = sendSchedulers.get(peerUsername);
+        if (dataChannel == null || dataChannel.state() != DataChannel.State.OPEN || scheduler == null) {
             Log.e("WebRTCClient", "No open data channel for " + peerUsername + ", storing data");
             dataChannelHandler.storeMessage(isFile ? "File: " + fileName : new String(data), peerUsername, "You");
             startConnection(peerUsername);
@@ -391,11 +841,27 @@ public class WebRTCClient {
         }
 
         try {
-            String senderPhone = firebaseClient.getCurrentUserPhone();
-            String senderEmail = senderPhone + "@example.com";
-            MessageEncryptor.EncryptionResult result = MessageEncryptor.encryptData(data, senderEmail, senderPhone);
-            dataChannel.send(new DataChannel.Buffer(ByteBuffer.wrap(result.combinedData), true));
-            Log.d("WebRTCClient", "Sent encrypted message to " + peerUsername + ", length: " + result.combinedData.length);
+            SessionCipher session = sessions.get(peerUsername);
+            ByteBuffer frame;
+            if (session != null && session.isConfirmed()) {
+                // Sealed directly behind the header of the frame that goes out
+                frame = Envelope.allocate(Envelope.TYPE_MESSAGE, 0, 0, messageSeq.getAndIncrement(), 0,
+                        SessionCipher.sealedLength(data.length));
+                session.encrypt(ByteBuffer.wrap(data), frame);
+                frame.flip();
+            } else if (legacyPeers.contains(peerUsername)) {
+                // Peers that never sent a handshake get the self-keyed format
+                frame = Envelope.wrap(Envelope.TYPE_MESSAGE, 0, 0, messageSeq.getAndIncrement(), 0,
+                        MessageEncryptor.encryptData(data).combinedData);
+            } else {
+                // onSessionReady delivers it once the handshake completes
+                Log.d("WebRTCClient", "Session with " + peerUsername + " not confirmed yet, holding message");
+                dataChannelHandler.storeMessage(isFile ? "File: " + fileName : new String(data), peerUsername, "You");
+                return;
+            }
+            // Goes out ahead of any queued file chunks
+            scheduler.sendInteractive(frame);
+            Log.d("WebRTCClient", "Sent encrypted message to " + peerUsername + ", length: " + (frame.remaining() - Envelope.HEADER_SIZE));
             dataChannelHandler.storeMessage(new String(data), peerUsername, "You");
         } catch (Exception e) {
             Log.e("WebRTCClient", "Error sending encrypted data to " + peerUsername + ": " + e.getMessage());
@@ -404,84 +870,209 @@ public class WebRTCClient {
         }
     }
 
+    // The transfer is recorded before anything is sent, so it survives a dropped
+    // channel or a process kill and is resumed when the peer's channel next opens.
+    // Sending itself runs on transferExecutor, so several files can be in flight.
     public void sendFile(Uri fileUri, String peerUsername, String fileName, String fileType) throws Exception {
+        long fileSize;
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(fileUri, "r")) {
+            fileSize = descriptor != null ? descriptor.getStatSize() : -1;
+        }
+        if (fileSize < 0) {
+            throw new IOException("Unable to determine the size of " + fileName);
+        }
+        long now = System.currentTimeMillis();
+        TransferEntity transfer = new TransferEntity(UUID.randomUUID().toString(), TransferEntity.DIRECTION_OUTGOING,
+                peerUsername, fileUri.toString(), fileName, fileType, fileSize, null, null, now, now);
+        transferDao.insert(transfer);
+        dataChannelHandler.storeMessage("File: " + fileName, peerUsername, "You");
+
         DataChannel dataChannel = dataChannels.get(peerUsername);
         if (dataChannel == null || dataChannel.state() != DataChannel.State.OPEN) {
-            Log.e("WebRTCClient", "No open data channel for " + peerUsername + ", storing data");
-            dataChannelHandler.storeMessage("File: " + fileName, peerUsername, "You");
-            pendingFileTransfers.put(peerUsername, fileUri.toString());
+            Log.e("WebRTCClient", "No open data channel for " + peerUsername + ", queued " + fileName);
             startConnection(peerUsername);
             return;
         }
+        transferExecutor.execute(() -> runTransferQuietly(transfer));
+    }
 
-        pendingFileTransfers.put(peerUsername, fileUri.toString());
-        try (InputStream inputStream = context.getContentResolver().openInputStream(fileUri)) {
-            if (inputStream == null) {
-                throw new IOException("Unable to open input stream for URI: " + fileUri);
+    private void resumeOutgoingTransfers(String peerUsername) {
+        transferExecutor.execute(() -> {
+            for (TransferEntity transfer : transferDao.getTransfersForPeer(peerUsername, TransferEntity.DIRECTION_OUTGOING)) {
+                Log.d("WebRTCClient", "Resuming file transfer to " + peerUsername + ": " + transfer.getFileName());
+                transferExecutor.execute(() -> runTransferQuietly(transfer));
             }
+        });
+    }
 
-            long fileSize = context.getContentResolver().openFileDescriptor(fileUri, "r").getStatSize();
-            String senderPhone = firebaseClient.getCurrentUserPhone();
-            String senderEmail = senderPhone + "@example.com";
-            long resumeOffset = lastSentOffsets.getOrDefault(peerUsername, 0L);
-
-            String metadata = "FILE:" + fileName + ":" + fileType + ":" + fileSize + ":";
-            byte[] metadataBytes = metadata.getBytes("UTF-8");
-            dataChannel.send(new DataChannel.Buffer(ByteBuffer.wrap(metadataBytes), true));
-            Log.d("WebRTCClient", "Sent file metadata to " + peerUsername + ": " + metadata);
-
-            int totalChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
-            int chunksProcessed = (int) (resumeOffset / CHUNK_SIZE);
-            inputStream.skip(resumeOffset);
+    private void runTransferQuietly(TransferEntity transfer) {
+        if (!isConnected(transfer.getPeerUsername())) {
+            return;
+        }
+        try {
+            runOutgoingTransfer(transfer);
+        } catch (Exception e) {
+            Log.e("WebRTCClient", "Transfer of " + transfer.getFileName() + " failed: " + e.getMessage(), e);
+            if (progressListener != null) {
+                progressListener.onProgress("Error", 0, transfer.getFileName());
+            }
+        }
+    }
 
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                byte[] chunk = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-                int offset = chunksProcessed * CHUNK_SIZE;
+    private void runOutgoingTransfer(TransferEntity transfer) throws Exception {
+        if (awaitingAck.contains(transfer.getTransferId()) || !activeTransfers.add(transfer.getTransferId())) {
+            Log.d("WebRTCClient", "Transfer " + transfer.getTransferId() + " is already running");
+            return;
+        }
+        String peerUsername = transfer.getPeerUsername();
+        String fileName = transfer.getFileName();
+        SendScheduler scheduler = sendSchedulers.get(peerUsername);
+        int streamId = nextStreamId.getAndIncrement();
+        CompletableFuture<Boolean> haveOffer = new CompletableFuture<>();
+        haveOffers.put(streamId, haveOffer);
+        CompletableFuture<byte[]> resumeOffer = new CompletableFuture<>();
+        resumeOffers.put(streamId, resumeOffer);
+        try (FileInputStream inputStream = openSeekableInput(Uri.parse(transfer.getUri()))) {
+            if (scheduler == null) {
+                throw new IOException("No data channel for " + peerUsername);
+            }
 
+            // Both passes read by position, so nothing is reopened or skipped through
+            FileChannel fileChannel = inputStream.getChannel();
+            long fileSize = transfer.getFileSize();
+            byte[] groupRoots = sourceGroupRoots(transfer, inputStream);
+            byte[] merkleRoot = MerkleTree.rootOf(groupRoots);
+            MessageEncryptor.TransferCipher transferCipher = MessageEncryptor.TransferCipher.create();
+            String transferId = transfer.getTransferId();
+            // The key goes under the session keys; the clear form is only for a peer that
+            // sends no handshake at all
+            SessionCipher session = awaitConfirmedSession(peerUsername);
+            boolean sealKey = session != null;
+            byte[] keyMaterial = transferCipher.getKeyMaterial();
+            int keyLength = sealKey ? SessionCipher.sealedLength(keyMaterial.length) : keyMaterial.length;
+            ByteBuffer metadata = Envelope.allocate(Envelope.TYPE_FILE_META, sealKey ? Envelope.FLAG_SEALED_KEY : 0, streamId, 0, fileSize,
+                    Envelope.stringSize(fileName) + Envelope.stringSize(transfer.getFileType()) + Envelope.stringSize(transferId)
+                            + keyLength + MerkleTree.HASH_SIZE);
+            Envelope.putString(metadata, fileName);
+            Envelope.putString(metadata, transfer.getFileType());
+            Envelope.putString(metadata, transferId);
+            if (sealKey) {
+                session.encrypt(ByteBuffer.wrap(keyMaterial), metadata);
+            } else {
+                Log.w("WebRTCClient", peerUsername + " sent no handshake, sending the key for " + fileName + " unsealed");
+                metadata.put(keyMaterial);
+            }
+            Arrays.fill(keyMaterial, (byte) 0);
+            metadata.put(merkleRoot);
+            metadata.flip();
+            scheduler.sendControl(metadata);
+            Log.d("WebRTCClient", "Sent file metadata to " + peerUsername + ": " + fileName + " (stream " + streamId + ")");
+
+            // The root doubles as the content hash; a peer that already holds it only acks
+            boolean peerHasContent;
+            try {
+                peerHasContent = haveOffer.get(RESUME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException("No answer from " + peerUsername + " for " + fileName);
+            }
+            if (peerHasContent) {
+                Log.d("WebRTCClient", peerUsername + " already has the content of " + fileName + ", skipping the data");
+                awaitingAck.add(transferId);
                 if (progressListener != null) {
-                    int encryptProgress = (int) ((chunksProcessed + 0.5) * 100 / totalChunks);
-                    progressListener.onProgress("Encrypting", encryptProgress, fileName);
-                }
-                MessageEncryptor.EncryptionResult result = MessageEncryptor.encryptData(chunk, senderEmail, senderPhone);
-                chunksProcessed++;
-
-                String chunkHeader = "CHUNK:" + fileSize + ":" + offset + ":";
-                byte[] chunkHeaderBytes = chunkHeader.getBytes("UTF-8");
-                byte[] chunkWithHeader = new byte[chunkHeaderBytes.length + result.combinedData.length];
-                System.arraycopy(chunkHeaderBytes, 0, chunkWithHeader, 0, chunkHeaderBytes.length);
-                System.arraycopy(result.combinedData, 0, chunkWithHeader, chunkHeaderBytes.length, result.combinedData.length);
-
-                DataChannel.Buffer dataBuffer = new DataChannel.Buffer(ByteBuffer.wrap(chunkWithHeader), true);
-                long bufferedAmount = dataChannel.bufferedAmount();
-
-                // Throttle sending
-                while (bufferedAmount > BUFFER_SIZE * 0.75 && dataChannel.state() == DataChannel.State.OPEN) {
-                    Thread.sleep(100); // Brief sleep to avoid tight loop
-                    bufferedAmount = dataChannel.bufferedAmount();
+                    progressListener.onProgress("Sending", 100, fileName);
                 }
+                return;
+            }
 
-                if (!dataChannel.send(dataBuffer)) {
-                    lastSentOffsets.put(peerUsername, (long) offset);
-                    throw new IOException("Failed to send chunk at offset " + offset);
-                }
+            // Only the group roots go ahead of the data; FileSender sends each group's leaves with its chunks
+            for (int group = 0; group * MerkleTree.HASH_SIZE < groupRoots.length; group += MerkleTree.GROUPS_PER_FRAME) {
+                int from = group * MerkleTree.HASH_SIZE;
+                int to = Math.min(groupRoots.length, from + MerkleTree.GROUPS_PER_FRAME * MerkleTree.HASH_SIZE);
+                scheduler.sendControl(Envelope.wrap(Envelope.TYPE_GROUP_HASHES, 0, streamId, 0, group,
+                        Arrays.copyOfRange(groupRoots, from, to)));
+            }
 
-                // Update progress more frequently
-                if (progressListener != null) {
-                    int sendProgress = (int) (chunksProcessed * 100 / totalChunks);
-                    progressListener.onProgress("Sending", sendProgress, fileName);
-                }
+            // The receiver checks the group roots against the root, then answers with the units it already holds
+            byte[] resumeBits;
+            try {
+                resumeBits = resumeOffer.get(RESUME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException("No resume answer from " + peerUsername + " for " + fileName);
+            }
+            ChunkBitmap chunkBitmap = new ChunkBitmap(fileSize, resumeBits);
+
+            ChunkSizer chunkSizer = new ChunkSizer(getRemoteMaxMessageSize(peerUsername));
+            SendWindow sendWindow = new SendWindow(chunkBitmap.contiguousBytes());
+            sendWindows.put(streamId, sendWindow);
+            FileSender fileSender = new FileSender(fileChannel, scheduler, chunkSizer, transferCipher,
+                    streamId, chunkBitmap, fileSize, fileName, progressListener,
+                    () -> peerRttNanos.getOrDefault(peerUsername, 0L), sendWindow,
+                    FEC_ENABLED ? new ParityEncoder(streamId, chunkSizer.getCeiling()) : null,
+                    ChunkCompressor.isCompressible(transfer.getFileType()));
+            try {
+                fileSender.run();
+            } finally {
+                chunkBitmap.markRange(0, fileSender.getAckedOffset());
+                transferDao.updateProgress(transferId, chunkBitmap.toByteArray(), System.currentTimeMillis());
             }
 
+            awaitingAck.add(transferId);
             Log.d("WebRTCClient", "Sent encrypted file to " + peerUsername + ", total length: " + fileSize);
-            dataChannelHandler.storeMessage("File: " + fileName, peerUsername, "You");
-            pendingFileTransfers.remove(peerUsername);
         } catch (Exception e) {
             Log.e("WebRTCClient", "Error sending file to " + peerUsername + ": " + e.getMessage(), e);
             throw e;
+        } finally {
+            haveOffers.remove(streamId);
+            resumeOffers.remove(streamId);
+            sendWindows.remove(streamId);
+            activeTransfers.remove(transfer.getTransferId());
+        }
+    }
+
+    // The row is only dropped once the receiver has saved the whole file.
+    private void completeOutgoingTransfer(String transferId) {
+        awaitingAck.remove(transferId);
+        transferExecutor.execute(() -> {
+            TransferEntity transfer = transferDao.getTransfer(transferId);
+            transferDao.deleteTransfer(transferId);
+            if (transfer != null) {
+                try {
+                    context.getContentResolver().releasePersistableUriPermission(Uri.parse(transfer.getUri()),
+                            android.content.Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                } catch (SecurityException e) {
+                    // The URI was never persisted (e.g. picked by another app)
+                }
+            }
+        });
+    }
+
+    // Reuses the pending download of an interrupted transfer when it still exists.
+    private TransferEntity openIncomingTransfer(String transferId, String peerUsername, String fileName, String fileType,
+                                                long fileSize, byte[] merkleRoot) throws IOException {
+        TransferEntity transfer = transferDao.getTransfer(transferId);
+        if (transfer != null && TransferEntity.DIRECTION_INCOMING.equals(transfer.getDirection())
+                && peerUsername.equals(transfer.getPeerUsername()) && transfer.getFileSize() == fileSize
+                && isReadable(Uri.parse(transfer.getUri()))) {
+            if (!Arrays.equals(merkleRoot, transfer.getMerkleRoot())) {
+                // The source changed since those units were verified
+                transferDao.resetProgress(transferId, merkleRoot, System.currentTimeMillis());
+                transfer.setChunkBitmap(null);
+                transfer.setMerkleRoot(merkleRoot);
+            }
+            return transfer;
         }
+        Uri destination = createPendingDownload(fileName, fileType, peerUsername);
+        long now = System.currentTimeMillis();
+        transfer = new TransferEntity(transferId, TransferEntity.DIRECTION_INCOMING, peerUsername, destination.toString(),
+                fileName, fileType, fileSize, null, merkleRoot, now, now);
+        transferDao.insert(transfer);
+        return transfer;
+    }
+
+    private int getRemoteMaxMessageSize(String peerUsername) {
+        PeerConnection peerConnection = peerConnections.get(peerUsername);
+        SessionDescription remote = peerConnection != null ? peerConnection.getRemoteDescription() : null;
+        return ChunkSizer.parseMaxMessageSize(remote != null ? remote.description : null);
     }
 
     private void createOffer(String peerUsername) {
@@ -544,36 +1135,74 @@ public class WebRTCClient {
     }
 
     public void disconnectPeer(String peerUsername) {
-        DataChannel dataChannel = dataChannels.remove(peerUsername);
-        if (dataChannel != null) {
-            dataChannel.close();
+        for (Map<String, DataChannel> channels : Arrays.asList(controlChannels, dataChannels)) {
+            DataChannel dataChannel = channels.remove(peerUsername);
+            if (dataChannel != null) {
+                dataChannel.close();
+            }
+        }
+        List<DataChannel> peerBulkChannels = bulkChannels.remove(peerUsername);
+        if (peerBulkChannels != null) {
+            for (DataChannel bulkChannel : peerBulkChannels) {
+                bulkChannel.close();
+            }
         }
         PeerConnection peerConnection = peerConnections.remove(peerUsername);
         if (peerConnection != null) {
             peerConnection.close();
         }
+        List<FlowControl> peerFlowControls = flowControls.remove(peerUsername);
+        if (peerFlowControls != null) {
+            for (FlowControl flowControl : peerFlowControls) {
+                flowControl.close();
+            }
+        }
+        SendScheduler scheduler = sendSchedulers.remove(peerUsername);
+        if (scheduler != null) {
+            scheduler.close();
+        }
         hasSentOffers.remove(peerUsername);
-        lastSentOffsets.remove(peerUsername);
+        peerRttNanos.remove(peerUsername);
+        forgetSession(peerUsername);
+        incomingStreams.remove(peerUsername);
         if (peerUsername.equals(currentPeerUsername)) {
             currentPeerUsername = null;
         }
     }
 
     public void disconnect() {
-        for (DataChannel dataChannel : dataChannels.values()) {
-            if (dataChannel != null) {
-                dataChannel.close();
+        for (Map<String, DataChannel> channels : Arrays.asList(controlChannels, dataChannels)) {
+            for (DataChannel dataChannel : channels.values()) {
+                if (dataChannel != null) {
+                    dataChannel.close();
+                }
             }
+            channels.clear();
         }
+        for (List<DataChannel> peerBulkChannels : bulkChannels.values()) {
+            for (DataChannel bulkChannel : peerBulkChannels) {
+                bulkChannel.close();
+            }
+        }
+        bulkChannels.clear();
         for (PeerConnection peerConnection : peerConnections.values()) {
             if (peerConnection != null) {
                 peerConnection.close();
             }
         }
-        dataChannels.clear();
+        for (List<FlowControl> peerFlowControls : flowControls.values()) {
+            for (FlowControl flowControl : peerFlowControls) {
+                flowControl.close();
+            }
+        }
+        flowControls.clear();
+        for (SendScheduler scheduler : sendSchedulers.values()) {
+            scheduler.close();
+        }
+        sendSchedulers.clear();
+        incomingStreams.clear();
         peerConnections.clear();
         hasSentOffers.clear();
-        lastSentOffsets.clear();
         currentPeerUsername = null;
         firebaseClient = null;
     }
@@ -613,12 +1242,9 @@ public class WebRTCClient {
         if (!dataChannels.isEmpty() && firebaseClient != null) {
             ConnectionManager connectionManager = ConnectionManager.getInstance(context);
             for (String peerUsername : connectionManager.getConnectedUsers()) {
-                if (pendingFileTransfers.containsKey(peerUsername)) {
-                    Log.d("WebRTC", "Resuming file transfer to " + peerUsername);
-                    Uri fileUri = Uri.parse(pendingFileTransfers.get(peerUsername));
-                    // TODO: Retrieve fileName and fileType from somewhere (e.g., stored metadata)
-                    sendFile(fileUri, peerUsername, "resumeFile", "application/octet-stream");
-                } else if (!isConnected(peerUsername)) {
+                if (isConnected(peerUsername)) {
+                    resumeOutgoingTransfers(peerUsername);
+                } else {
                     Log.d("WebRTC", "Restoring connection to " + peerUsername);
                     startConnection(peerUsername);
                 }
@@ -676,8 +1302,8 @@ public class WebRTCClient {
         if (webrtcListener != null) {
             switch (state) {
                 case OPEN:
+                    // Queued texts and transfers wait for the session; see onSessionReady
                     webrtcListener.onConnected();
-                    deliverStoredMessages(peerUsername);
                     break;
                 case CLOSED:
                 case CLOSING:
@@ -741,65 +1367,124 @@ public class WebRTCClient {
         }
     }
 
-    private File saveFileToInternalStorage(File tempFile, String fileName, String fileType, String peerUsername) throws IOException {
-        ContentResolver resolver = context.getContentResolver();
+    // Received files are written in place into a pending Downloads entry, which stays
+    // hidden from other apps until publishDownload clears IS_PENDING.
+    private Uri createPendingDownload(String fileName, String fileType, String peerUsername) throws IOException {
         ContentValues contentValues = new ContentValues();
         contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
         contentValues.put(MediaStore.MediaColumns.MIME_TYPE, fileType);
+        contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, Environment.DIRECTORY_DOWNLOADS + "/From_" + peerUsername);
+        contentValues.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        Uri fileUri = context.getContentResolver().insert(MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY), contentValues);
+        if (fileUri == null) {
+            throw new IOException("Failed to create new MediaStore record for " + fileName);
+        }
+        return fileUri;
+    }
 
-        Uri collection;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
-            contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, Environment.DIRECTORY_DOWNLOADS + "/From_" + peerUsername);
-            collection = MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
-        } else {
-            File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-            File peerDir = new File(downloadsDir, "From_" + peerUsername);
-            if (!peerDir.exists() && !peerDir.mkdirs()) {
-                throw new IOException("Failed to create directory: " + peerDir);
-            }
-            collection = MediaStore.Files.getContentUri("external");
-            contentValues.put(MediaStore.MediaColumns.DATA, new File(peerDir, fileName).getAbsolutePath());
+    // A saved file with this content that can still be opened, or null.
+    private StoredFileEntity findStoredFile(byte[] merkleRoot, long fileSize) {
+        String contentHash = MerkleTree.toHex(merkleRoot);
+        StoredFileEntity stored = storedFileDao.getStoredFile(contentHash);
+        if (stored == null) {
+            return null;
         }
+        if (stored.getFileSize() != fileSize || !isReadable(Uri.parse(stored.getUri()))) {
+            // Deleted by the user since; the next copy to arrive takes its place
+            storedFileDao.deleteStoredFile(contentHash);
+            return null;
+        }
+        return stored;
+    }
 
-        Uri fileUri = null;
+    // Drops a partial download of a transfer that turned out not to be needed.
+    private void discardIncomingTransfer(String transferId) {
+        TransferEntity transfer = transferDao.getTransfer(transferId);
+        if (transfer == null || !TransferEntity.DIRECTION_INCOMING.equals(transfer.getDirection())) {
+            return;
+        }
         try {
-            fileUri = resolver.insert(collection, contentValues);
-            if (fileUri == null) {
-                throw new IOException("Failed to create new MediaStore record for " + fileName);
-            }
+            context.getContentResolver().delete(Uri.parse(transfer.getUri()), null, null);
+        } catch (SecurityException e) {
+            Log.w("WebRTCClient", "Unable to delete partial download " + transfer.getUri() + ": " + e.getMessage());
+        }
+        transferDao.deleteTransfer(transferId);
+    }
 
-            try (OutputStream os = resolver.openOutputStream(fileUri);
-                 InputStream is = new java.io.FileInputStream(tempFile)) {
-                if (os == null) {
-                    throw new IOException("Failed to open output stream for URI: " + fileUri);
-                }
-                byte[] buffer = new byte[CHUNK_SIZE];
-                int bytesRead;
-                while ((bytesRead = is.read(buffer)) != -1) {
-                    os.write(buffer, 0, bytesRead);
-                }
-                os.flush();
-                Log.d("WebRTCClient", "File saved successfully: " + fileUri);
+    // The source's MerkleTree group roots. Hashing reads the whole file, so the result is
+    // kept with the transfer and reused while the source's size and modification time
+    // stay the same; a resume or reconnect then starts sending at once.
+    private byte[] sourceGroupRoots(TransferEntity transfer, FileInputStream inputStream) throws IOException {
+        long fileSize = transfer.getFileSize();
+        long modified;
+        try {
+            StructStat stat = Os.fstat(inputStream.getFD());
+            if (stat.st_size != fileSize) {
+                throw new IOException(transfer.getFileName() + " changed size since it was queued");
             }
+            modified = stat.st_mtim.tv_sec * 1_000_000_000L + stat.st_mtim.tv_nsec;
+        } catch (ErrnoException e) {
+            throw new IOException("Unable to stat " + transfer.getFileName(), e);
+        }
+        byte[] groupRoots = transfer.getGroupRoots();
+        if (groupRoots != null && modified == transfer.getSourceModified()
+                && groupRoots.length == MerkleTree.groupCount(fileSize) * MerkleTree.HASH_SIZE) {
+            return groupRoots;
+        }
+        groupRoots = MerkleTree.hashGroupRoots(inputStream.getChannel(), fileSize);
+        transfer.setMerkleRoot(MerkleTree.rootOf(groupRoots));
+        transfer.setGroupRoots(groupRoots);
+        transfer.setSourceModified(modified);
+        transferDao.updateSourceHashes(transfer.getTransferId(), transfer.getMerkleRoot(), groupRoots, modified,
+                System.currentTimeMillis());
+        return groupRoots;
+    }
 
-            // Get the real file path
-            String filePath = getRealPathFromUri(fileUri, fileName, peerUsername);
-            File file = new File(filePath);
+    // The sender reads by position, which a pipe from a streaming provider cannot do.
+    private FileInputStream openSeekableInput(Uri fileUri) throws IOException {
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(fileUri, "r");
+        if (descriptor == null) {
+            throw new IOException("Unable to open file descriptor for URI: " + fileUri);
+        }
+        if (descriptor.getStatSize() < 0) {
+            descriptor.close();
+            throw new IOException("URI is not a seekable file: " + fileUri);
+        }
+        return new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+    }
+
+    private boolean isReadable(Uri fileUri) {
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(fileUri, "r")) {
+            return descriptor != null;
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+    }
 
+    private File publishDownload(Uri fileUri, String fileName, String peerUsername) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        if (resolver.update(fileUri, contentValues, null, null) == 0) {
             new android.os.Handler(android.os.Looper.getMainLooper()).post(() ->
-                    Toast.makeText(context, "File saved to Downloads/From_" + peerUsername + ": " + fileName, Toast.LENGTH_LONG).show()
+                    Toast.makeText(context, "Failed to save file: " + fileName, Toast.LENGTH_LONG).show()
             );
-            return file;
-        } catch (IOException e) {
-            Log.e("WebRTCClient", "Error saving file: " + fileName + " - " + e.getMessage());
-            if (fileUri != null) {
-                resolver.delete(fileUri, null, null);
+            throw new IOException("Failed to publish " + fileUri);
+        }
+        Log.d("WebRTCClient", "File saved successfully: " + fileUri);
+
+        // MediaStore may have renamed the file to avoid a clash
+        String savedName = fileName;
+        try (android.database.Cursor cursor = resolver.query(fileUri, new String[]{MediaStore.MediaColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                savedName = cursor.getString(0);
             }
-            new android.os.Handler(android.os.Looper.getMainLooper()).post(() ->
-                    Toast.makeText(context, "Failed to save file: " + fileName + " - " + e.getMessage(), Toast.LENGTH_LONG).show()
-            );
-            throw e;
         }
+        String displayName = savedName;
+        new android.os.Handler(android.os.Looper.getMainLooper()).post(() ->
+                Toast.makeText(context, "File saved to Downloads/From_" + peerUsername + ": " + displayName, Toast.LENGTH_LONG).show()
+        );
+        return new File(getRealPathFromUri(fileUri, savedName, peerUsername));
     }
 
     private String getRealPathFromUri(Uri uri, String fileName, String peerUsername) {
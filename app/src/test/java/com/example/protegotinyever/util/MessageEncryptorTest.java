@@ -0,0 +1,84 @@
+package com.example.protegotinyever.util;
+
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageEncryptorTest {
+    @Test
+    public void encryptData_roundTrip() throws Exception {
+        byte[] data = "current format".getBytes(StandardCharsets.UTF_8);
+        byte[] sealed = MessageEncryptor.encryptData(data).combinedData;
+        assertArrayEquals(data, MessageEncryptor.decryptData(sealed));
+    }
+
+    @Test
+    public void decryptData_rejectsTamperedMessage() throws Exception {
+        byte[] sealed = MessageEncryptor.encryptData("current format".getBytes(StandardCharsets.UTF_8)).combinedData;
+        sealed[sealed.length - 1] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> MessageEncryptor.decryptData(sealed));
+    }
+
+    @Test
+    public void decryptData_readsLegacyFormat() throws Exception {
+        String message = "sent by a peer on the previous version";
+        assertEquals(message, MessageEncryptor.decryptMessage(legacyEncrypt(message.getBytes(StandardCharsets.UTF_8), 1)));
+    }
+
+    @Test
+    public void decryptData_readsEmptyLegacyMessage() throws Exception {
+        assertArrayEquals(new byte[0], MessageEncryptor.decryptData(legacyEncrypt(new byte[0], 2)));
+    }
+
+    @Test
+    public void transferCipher_rejectsWrongPosition() throws Exception {
+        MessageEncryptor.TransferCipher transferCipher = MessageEncryptor.TransferCipher.create();
+        byte[] chunk = "chunk at 4096".getBytes(StandardCharsets.UTF_8);
+        byte[] sealed = new byte[chunk.length + MessageEncryptor.TAG_LENGTH];
+        transferCipher.encrypt(4096, chunk, 0, chunk.length, sealed, 0);
+
+        byte[] opened = new byte[chunk.length];
+        assertEquals(chunk.length, transferCipher.decrypt(4096, sealed, 0, sealed.length, opened, 0));
+        assertArrayEquals(chunk, opened);
+        assertEquals(-1, transferCipher.decrypt(8192, sealed, 0, sealed.length, opened, 0));
+    }
+
+    // The format before the AEAD one: ChaCha20 then AES-CTR, keys, nonce and IV in front.
+    private static byte[] legacyEncrypt(byte[] data, long seed) throws Exception {
+        Random random = new Random(seed);
+        byte[] chachaKey = new byte[32];
+        byte[] aesKey = new byte[32];
+        byte[] nonce = new byte[8];
+        byte[] iv = new byte[16];
+        random.nextBytes(chachaKey);
+        random.nextBytes(aesKey);
+        random.nextBytes(nonce);
+        random.nextBytes(iv);
+
+        ChaChaEngine chacha = new ChaChaEngine();
+        chacha.init(true, new ParametersWithIV(new KeyParameter(chachaKey), nonce));
+        byte[] chachaEncrypted = new byte[data.length];
+        chacha.processBytes(data, 0, data.length, chachaEncrypted, 0);
+        Cipher aes = Cipher.getInstance("AES/CTR/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(iv));
+        byte[] encrypted = aes.doFinal(chachaEncrypted);
+
+        byte[] combined = new byte[32 + 32 + 8 + 16 + encrypted.length];
+        System.arraycopy(chachaKey, 0, combined, 0, 32);
+        System.arraycopy(aesKey, 0, combined, 32, 32);
+        System.arraycopy(nonce, 0, combined, 64, 8);
+        System.arraycopy(iv, 0, combined, 72, 16);
+        System.arraycopy(encrypted, 0, combined, 88, encrypted.length);
+        return combined;
+    }
+}
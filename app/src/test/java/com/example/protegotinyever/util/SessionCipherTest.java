@@ -0,0 +1,180 @@
+package com.example.protegotinyever.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionCipherTest {
+    private SessionCipher alice;
+    private SessionCipher bob;
+
+    @Before
+    public void setUp() throws Exception {
+        SessionCipher.Handshake aliceHandshake = new SessionCipher.Handshake();
+        SessionCipher.Handshake bobHandshake = new SessionCipher.Handshake();
+        alice = aliceHandshake.complete(bobHandshake.getPublicKey());
+        bob = bobHandshake.complete(aliceHandshake.getPublicKey());
+    }
+
+    @Test
+    public void roundTrip_bothDirections() throws Exception {
+        assertEquals("hello bob", open(bob, seal(alice, "hello bob")));
+        assertEquals("hello alice", open(alice, seal(bob, "hello alice")));
+        assertEquals("again", open(bob, seal(alice, "again")));
+        assertEquals("", open(alice, seal(bob, "")));
+    }
+
+    @Test
+    public void cipherChange_betweenMessages_opensBoth() throws Exception {
+        byte preferred = MessageEncryptor.getPreferredCipher();
+        try {
+            MessageEncryptor.select(MessageEncryptor.CIPHER_AES_GCM, null, MessageEncryptor.PROVIDER_BOUNCY_CASTLE);
+            ByteBuffer aesGcm = seal(alice, "sealed with AES-GCM");
+            MessageEncryptor.select(MessageEncryptor.CIPHER_CHACHA20_POLY1305, null, MessageEncryptor.PROVIDER_BOUNCY_CASTLE);
+            ByteBuffer chacha = seal(alice, "sealed with ChaCha20-Poly1305");
+            assertEquals("sealed with ChaCha20-Poly1305", open(bob, chacha));
+            assertEquals("sealed with AES-GCM", open(bob, aesGcm));
+        } finally {
+            MessageEncryptor.select(preferred, null, MessageEncryptor.PROVIDER_BOUNCY_CASTLE);
+        }
+    }
+
+    @Test
+    public void confirm_onlyForAnEchoOfThisConnectionsKey() throws Exception {
+        SessionCipher.Handshake earlier = new SessionCipher.Handshake();
+        SessionCipher.Handshake ours = new SessionCipher.Handshake();
+        SessionCipher.Handshake peers = new SessionCipher.Handshake();
+        SessionCipher session = ours.complete(peers.getPublicKey());
+        assertFalse(session.isConfirmed());
+
+        // The peer still echoing our key from the last connection
+        assertFalse(session.confirm(earlier.getPublicKey()));
+        assertFalse(session.confirm(peers.getPublicKey()));
+        assertFalse(session.confirm(new byte[0]));
+        assertFalse(session.isConfirmed());
+
+        assertTrue(session.confirm(ours.getPublicKey()));
+        assertTrue(session.isConfirmed());
+        assertArrayEquals(peers.getPublicKey(), session.getPeerPublicKey());
+    }
+
+    @Test
+    public void sealedMessage_isRecognisedAndSized() throws Exception {
+        ByteBuffer sealed = seal(alice, "twelve bytes");
+        assertTrue(SessionCipher.isSessionMessage(sealed));
+        assertEquals(SessionCipher.sealedLength(12), sealed.remaining());
+        assertEquals(12, SessionCipher.plaintextLength(sealed.remaining()));
+        assertFalse(SessionCipher.isSessionMessage(ByteBuffer.wrap(MessageEncryptor.encryptMessage("x").combinedData)));
+    }
+
+    @Test
+    public void outOfOrder_withinMaxSkip() throws Exception {
+        List<ByteBuffer> sealed = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sealed.add(seal(alice, "message " + i));
+        }
+        for (int i : new int[] {4, 0, 2, 1, 3}) {
+            assertEquals("message " + i, open(bob, sealed.get(i)));
+        }
+        assertEquals("message 5", open(bob, seal(alice, "message 5")));
+    }
+
+    @Test
+    public void replay_isRejected() throws Exception {
+        ByteBuffer first = seal(alice, "once");
+        ByteBuffer second = seal(alice, "twice");
+        ByteBuffer replay = first.duplicate();
+        assertEquals("once", open(bob, first));
+        assertThrows(GeneralSecurityException.class, () -> open(bob, replay));
+
+        // A skipped key is used up too
+        ByteBuffer third = seal(alice, "three");
+        ByteBuffer replayedSecond = second.duplicate();
+        assertEquals("three", open(bob, third));
+        assertEquals("twice", open(bob, second));
+        assertThrows(GeneralSecurityException.class, () -> open(bob, replayedSecond));
+    }
+
+    @Test
+    public void counter_moreThanMaxSkipAhead_isRejected() throws Exception {
+        List<ByteBuffer> sealed = new ArrayList<>();
+        for (int i = 0; i <= 65; i++) {
+            sealed.add(seal(alice, "message " + i));
+        }
+        ByteBuffer tooFar = sealed.get(65);
+        assertThrows(GeneralSecurityException.class, () -> open(bob, tooFar));
+        assertEquals(0, tooFar.position());
+
+        // Exactly 64 ahead is still accepted, after which 65 is next in line
+        assertEquals("message 64", open(bob, sealed.get(64)));
+        assertEquals("message 65", open(bob, tooFar));
+        assertEquals("message 1", open(bob, sealed.get(1)));
+    }
+
+    @Test
+    public void tamperedTag_isRejectedWithoutMovingTheChain() throws Exception {
+        ByteBuffer sealed = seal(alice, "do not touch");
+        int last = sealed.limit() - 1;
+        sealed.put(last, (byte) (sealed.get(last) ^ 1));
+        assertThrows(AEADBadTagException.class, () -> open(bob, sealed));
+        assertEquals(0, sealed.position());
+
+        sealed.put(last, (byte) (sealed.get(last) ^ 1));
+        assertEquals("do not touch", open(bob, sealed));
+    }
+
+    @Test
+    public void tamperedCiphertext_inDirectBuffer_isRejected() throws Exception {
+        ByteBuffer heap = seal(alice, "direct");
+        ByteBuffer sealed = ByteBuffer.allocateDirect(heap.remaining());
+        sealed.put(heap).flip();
+        sealed.put(SessionCipher.sealedLength(0) - MessageEncryptor.TAG_LENGTH, (byte) 'X');
+        assertThrows(AEADBadTagException.class, () -> open(bob, sealed));
+    }
+
+    @Test
+    public void otherSession_cannotOpen() throws Exception {
+        SessionCipher.Handshake eveHandshake = new SessionCipher.Handshake();
+        SessionCipher eve = eveHandshake.complete(new SessionCipher.Handshake().getPublicKey());
+        ByteBuffer sealed = seal(alice, "not for eve");
+        assertThrows(AEADBadTagException.class, () -> open(eve, sealed));
+    }
+
+    @Test
+    public void transferKey_sealedInsideMetadata() throws Exception {
+        byte[] keyMaterial = MessageEncryptor.TransferCipher.create().getKeyMaterial();
+        ByteBuffer metadata = ByteBuffer.allocate(SessionCipher.sealedLength(keyMaterial.length) + 32);
+        alice.encrypt(ByteBuffer.wrap(keyMaterial), metadata);
+        metadata.put(new byte[32]).flip();
+
+        // As WebRTCClient reads it: the sealed key, then the fields after it
+        ByteBuffer sealed = metadata.duplicate();
+        sealed.limit(SessionCipher.sealedLength(keyMaterial.length));
+        byte[] opened = new byte[keyMaterial.length];
+        assertEquals(keyMaterial.length, bob.decrypt(sealed, ByteBuffer.wrap(opened)));
+        assertArrayEquals(keyMaterial, opened);
+        assertEquals(sealed.limit(), sealed.position());
+    }
+
+    private static ByteBuffer seal(SessionCipher session, String text) throws GeneralSecurityException {
+        ByteBuffer plaintext = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer sealed = ByteBuffer.allocate(SessionCipher.sealedLength(plaintext.remaining()));
+        assertEquals(sealed.capacity(), session.encrypt(plaintext, sealed));
+        sealed.flip();
+        return sealed;
+    }
+
+    private static String open(SessionCipher session, ByteBuffer sealed) throws GeneralSecurityException {
+        byte[] plaintext = new byte[SessionCipher.plaintextLength(sealed.remaining())];
+        int length = session.decrypt(sealed, ByteBuffer.wrap(plaintext));
+        return new String(plaintext, 0, length, StandardCharsets.UTF_8);
+    }
+}
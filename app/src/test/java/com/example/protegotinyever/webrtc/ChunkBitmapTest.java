@@ -0,0 +1,97 @@
+package com.example.protegotinyever.webrtc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkBitmapTest {
+    private static final int UNIT = ChunkSizer.UNIT;
+    // Three whole units and a 100-byte tail
+    private static final long FILE_SIZE = 3L * UNIT + 100;
+
+    @Test
+    public void containsRange_countsTheShortTailUnit() {
+        ChunkBitmap bitmap = new ChunkBitmap(FILE_SIZE);
+        assertEquals(1, bitmap.markRange(3L * UNIT, 100));
+        assertTrue(bitmap.containsRange(3L * UNIT, 100));
+        // Running past the end of the file is clamped to it
+        assertTrue(bitmap.containsRange(3L * UNIT, UNIT));
+        assertFalse(bitmap.containsRange(2L * UNIT, UNIT + 100));
+
+        bitmap.markRange(2L * UNIT, UNIT);
+        assertTrue(bitmap.containsRange(2L * UNIT, UNIT + 100));
+        assertEquals(UNIT + 100, bitmap.completedBytes());
+    }
+
+    @Test
+    public void markRange_ignoresPartialUnitsBeforeTheTail() {
+        ChunkBitmap bitmap = new ChunkBitmap(FILE_SIZE);
+        assertEquals(0, bitmap.markRange(0, UNIT - 1));
+        assertEquals(0, bitmap.markRange(UNIT + 1, UNIT));
+        assertFalse(bitmap.isSet(0));
+        assertFalse(bitmap.isSet(1));
+        assertEquals(1, bitmap.markRange(0, UNIT));
+        assertEquals(0, bitmap.markRange(0, UNIT));
+    }
+
+    @Test
+    public void nextMissing_skipsHeldUnits() {
+        ChunkBitmap bitmap = new ChunkBitmap(FILE_SIZE);
+        assertEquals(0, bitmap.nextMissing(0));
+        bitmap.markRange(0, UNIT);
+        bitmap.markRange(2L * UNIT, UNIT);
+        assertEquals(UNIT, bitmap.nextMissing(0));
+        assertEquals(3L * UNIT, bitmap.nextMissing(2L * UNIT));
+        // An offset inside a unit starts from the next one
+        assertEquals(3L * UNIT, bitmap.nextMissing(UNIT + 1));
+
+        bitmap.markRange(3L * UNIT, 100);
+        assertEquals(FILE_SIZE, bitmap.nextMissing(2L * UNIT));
+        bitmap.markRange(UNIT, UNIT);
+        assertEquals(FILE_SIZE, bitmap.nextMissing(0));
+        assertTrue(bitmap.isComplete());
+    }
+
+    @Test
+    public void missingRunLength_stopsAtHeldUnitsTheTailAndTheCap() {
+        ChunkBitmap bitmap = new ChunkBitmap(FILE_SIZE);
+        assertEquals(FILE_SIZE, bitmap.missingRunLength(0, Long.MAX_VALUE));
+        assertEquals(2L * UNIT, bitmap.missingRunLength(0, 2L * UNIT));
+        assertEquals(100, bitmap.missingRunLength(3L * UNIT, Long.MAX_VALUE));
+        assertEquals(UNIT + 100, bitmap.missingRunLength(2L * UNIT, 4L * UNIT));
+
+        bitmap.markRange(UNIT, UNIT);
+        assertEquals(UNIT, bitmap.missingRunLength(0, Long.MAX_VALUE));
+        assertEquals(0, bitmap.missingRunLength(UNIT, Long.MAX_VALUE));
+
+        bitmap.markRange(3L * UNIT, 100);
+        assertEquals(UNIT, bitmap.missingRunLength(2L * UNIT, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void contiguousBytes_andTruncatedTo() {
+        ChunkBitmap bitmap = new ChunkBitmap(FILE_SIZE);
+        bitmap.markRange(0, UNIT);
+        bitmap.markRange(2L * UNIT, UNIT + 100);
+        assertEquals(UNIT, bitmap.contiguousBytes());
+
+        // Only units wholly inside the first length bytes survive
+        ChunkBitmap truncated = bitmap.truncatedTo(3L * UNIT + 50);
+        assertTrue(truncated.isSet(2));
+        assertFalse(truncated.isSet(3));
+        assertEquals(2L * UNIT, truncated.completedBytes());
+
+        bitmap.markRange(UNIT, UNIT);
+        assertEquals(FILE_SIZE, bitmap.contiguousBytes());
+        assertTrue(new ChunkBitmap(FILE_SIZE, bitmap.toByteArray()).isComplete());
+    }
+
+    @Test
+    public void bitsFrom_startsAtTheUnitHoldingTheOffset() {
+        ChunkBitmap bitmap = new ChunkBitmap(FILE_SIZE);
+        bitmap.markRange(2L * UNIT, UNIT);
+        bitmap.markRange(3L * UNIT, 100);
+        assertArrayEquals(new byte[] {0b110}, bitmap.bitsFrom(UNIT + 5, 64));
+        assertArrayEquals(new byte[] {0b10}, bitmap.bitsFrom(UNIT, 2));
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.protegotinyever.webrtc;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static final int UNIT = ChunkSizer.UNIT;
+    private static final long GROUP_BYTES = (long) MerkleTree.LEAVES_PER_GROUP * UNIT;
+    // One whole group, then a second group of two units and a 100-byte tail
+    private static final long FILE_SIZE = GROUP_BYTES + 2L * UNIT + 100;
+
+    private static Path file;
+    private static byte[] data;
+    private static FileChannel channel;
+
+    @BeforeClass
+    public static void writeFile() throws IOException {
+        data = new byte[(int) FILE_SIZE];
+        new Random(16).nextBytes(data);
+        file = Files.createTempFile("merkle", ".bin");
+        Files.write(file, data);
+        channel = FileChannel.open(file);
+    }
+
+    @AfterClass
+    public static void deleteFile() throws IOException {
+        channel.close();
+        Files.delete(file);
+    }
+
+    private static MerkleTree receivingTree() throws IOException {
+        byte[] groupRoots = MerkleTree.hashGroupRoots(channel, FILE_SIZE);
+        MerkleTree tree = new MerkleTree(MerkleTree.rootOf(groupRoots), FILE_SIZE);
+        assertTrue(tree.addGroupRoots(0, ByteBuffer.wrap(groupRoots)));
+        return tree;
+    }
+
+    @Test
+    public void groupRoots_hashToTheRootOfAllLeaves() throws IOException {
+        assertEquals(2, MerkleTree.groupCount(FILE_SIZE));
+        byte[] first = MerkleTree.hashGroup(channel, FILE_SIZE, 0);
+        byte[] second = MerkleTree.hashGroup(channel, FILE_SIZE, 1);
+        assertEquals(MerkleTree.LEAVES_PER_GROUP * MerkleTree.HASH_SIZE, first.length);
+        assertEquals(3 * MerkleTree.HASH_SIZE, second.length);
+
+        byte[] allLeaves = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, allLeaves, first.length, second.length);
+        assertArrayEquals(MerkleTree.rootOf(allLeaves), MerkleTree.rootOf(MerkleTree.hashGroupRoots(channel, FILE_SIZE)));
+    }
+
+    @Test
+    public void addGroupRoots_waitsForEveryGroupAndChecksTheRoot() throws IOException {
+        byte[] groupRoots = MerkleTree.hashGroupRoots(channel, FILE_SIZE);
+        MerkleTree tree = new MerkleTree(MerkleTree.rootOf(groupRoots), FILE_SIZE);
+        assertFalse(tree.addGroupRoots(0, ByteBuffer.wrap(groupRoots, 0, MerkleTree.HASH_SIZE)));
+        assertFalse(tree.isVerified());
+        assertTrue(tree.addGroupRoots(1, ByteBuffer.wrap(groupRoots, MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE)));
+        assertTrue(tree.isVerified());
+
+        groupRoots[0] ^= 1;
+        MerkleTree tampered = new MerkleTree(tree.getRoot(), FILE_SIZE);
+        try {
+            tampered.addGroupRoots(0, ByteBuffer.wrap(groupRoots));
+            fail("Group roots that miss the root were accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(tampered.isVerified());
+    }
+
+    @Test
+    public void addLeaves_rejectsLeavesThatMissTheirGroupRoot() throws IOException {
+        MerkleTree tree = receivingTree();
+        byte[] leaves = MerkleTree.hashGroup(channel, FILE_SIZE, 1);
+        leaves[5] ^= 1;
+        try {
+            tree.addLeaves(MerkleTree.LEAVES_PER_GROUP, ByteBuffer.wrap(leaves));
+            fail("Tampered leaves were accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(tree.hasLeaves(GROUP_BYTES, UNIT));
+    }
+
+    @Test
+    public void addLeaves_takesWholeAlignedGroupsOnly() throws IOException {
+        MerkleTree tree = receivingTree();
+        byte[] leaves = MerkleTree.hashGroup(channel, FILE_SIZE, 1);
+        try {
+            tree.addLeaves(MerkleTree.LEAVES_PER_GROUP + 1, ByteBuffer.wrap(leaves));
+            fail("Unaligned leaves were accepted");
+        } catch (IOException expected) {
+        }
+        try {
+            tree.addLeaves(MerkleTree.LEAVES_PER_GROUP, ByteBuffer.wrap(leaves, 0, MerkleTree.HASH_SIZE));
+            fail("Part of a group was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void addLeaves_beforeTheGroupRootsAreVerified_isRejected() throws IOException {
+        byte[] groupRoots = MerkleTree.hashGroupRoots(channel, FILE_SIZE);
+        MerkleTree tree = new MerkleTree(MerkleTree.rootOf(groupRoots), FILE_SIZE);
+        try {
+            tree.addLeaves(0, ByteBuffer.wrap(MerkleTree.hashGroup(channel, FILE_SIZE, 0)));
+            fail("Leaves were accepted before the group roots");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void verify_checksUnitsOnlyWhileTheirGroupHasLeaves() throws IOException {
+        MerkleTree tree = receivingTree();
+        int tailOffset = (int) GROUP_BYTES;
+        int tailLength = 2 * UNIT + 100;
+        assertFalse(tree.verify(tailOffset, Arrays.copyOfRange(data, tailOffset, tailOffset + tailLength), tailLength));
+
+        tree.addLeaves(MerkleTree.LEAVES_PER_GROUP, ByteBuffer.wrap(MerkleTree.hashGroup(channel, FILE_SIZE, 1)));
+        assertTrue(tree.hasLeaves(GROUP_BYTES, tailLength));
+        // A chunk straddling both groups needs the first group's leaves too
+        assertFalse(tree.hasLeaves(GROUP_BYTES - UNIT, 2 * UNIT));
+        byte[] tail = Arrays.copyOfRange(data, tailOffset, tailOffset + tailLength);
+        assertTrue(tree.verify(tailOffset, tail, tailLength));
+        tail[tailLength - 1] ^= 1;
+        assertFalse(tree.verify(tailOffset, tail, tailLength));
+
+        tree.releaseGroup(1);
+        assertFalse(tree.hasLeaves(GROUP_BYTES, UNIT));
+        assertFalse(tree.verify(tailOffset, Arrays.copyOfRange(data, tailOffset, tailOffset + UNIT), UNIT));
+    }
+
+    @Test
+    public void emptyFile_isVerifiedWithoutGroups() {
+        MerkleTree tree = new MerkleTree(MerkleTree.rootOf(new byte[0]), 0);
+        assertEquals(0, MerkleTree.groupCount(0));
+        assertTrue(tree.isVerified());
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.protegotinyever.webrtc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// ParityEncoder output fed straight to a ParityDecoder, as the two ends of a stream see it.
+public class ParityDecoderTest {
+    private static final int UNIT = ChunkSizer.UNIT;
+    private static final int CHUNK_SIZE = 4 * UNIT;
+    private static final double LOSS_RATE = 0.025; // Blocks of four
+
+    private final Random random = new Random(15);
+
+    @Test
+    public void blockSize_followsLossRate() {
+        assertEquals(0, ParityEncoder.blockSizeFor(0));
+        assertEquals(0, ParityEncoder.blockSizeFor(0.0049));
+        assertEquals(20, ParityEncoder.blockSizeFor(0.005));
+        assertEquals(10, ParityEncoder.blockSizeFor(0.01));
+        assertEquals(4, ParityEncoder.blockSizeFor(0.025));
+        // Never below four, however lossy
+        assertEquals(4, ParityEncoder.blockSizeFor(0.5));
+    }
+
+    @Test
+    public void cleanLink_getsNoParity() {
+        ParityEncoder encoder = new ParityEncoder(1, CHUNK_SIZE);
+        ByteBuffer frame = chunkFrame(0, CHUNK_SIZE, 0);
+        assertNull(encoder.add(0, frame, 0.001));
+        assertEquals(0, Envelope.flags(frame) & Envelope.FLAG_FEC);
+        assertNull(encoder.flush());
+    }
+
+    @Test
+    public void roundTrip_rebuildsOneDroppedMemberPerBlock() {
+        ParityEncoder encoder = new ParityEncoder(1, CHUNK_SIZE);
+        ParityDecoder decoder = new ParityDecoder();
+        long fileSize = 16L * CHUNK_SIZE;
+        ChunkBitmap bitmap = new ChunkBitmap(fileSize);
+
+        List<ByteBuffer> block = new ArrayList<>();
+        int blocks = 0;
+        for (int i = 0; i < 16; i++) {
+            long offset = (long) i * CHUNK_SIZE;
+            // Every other chunk is deflated and carries less than its range
+            boolean compressed = i % 2 == 1;
+            ByteBuffer frame = chunkFrame(offset, compressed ? CHUNK_SIZE / 3 + i : CHUNK_SIZE,
+                    compressed ? Envelope.FLAG_COMPRESSED : 0);
+            ByteBuffer parity = encoder.add(offset, frame, LOSS_RATE);
+            block.add(frame);
+            if (parity == null) {
+                continue;
+            }
+            assertEquals(4, block.size());
+            ByteBuffer dropped = block.get(blocks % 4);
+            for (ByteBuffer member : block) {
+                if (member != dropped) {
+                    assertNull(decoder.onChunk(Envelope.offset(member), payload(member), bitmap));
+                    bitmap.markRange(Envelope.offset(member), CHUNK_SIZE);
+                }
+            }
+            assertRebuilt(dropped, decoder.onParity(parityPayload(parity), bitmap));
+            block.clear();
+            blocks++;
+        }
+        assertEquals(4, blocks);
+    }
+
+    @Test
+    public void parityBeforeLastMember_rebuildsOnThatMember() {
+        ParityEncoder encoder = new ParityEncoder(1, CHUNK_SIZE);
+        ParityDecoder decoder = new ParityDecoder();
+        ChunkBitmap bitmap = new ChunkBitmap(4L * CHUNK_SIZE);
+        List<ByteBuffer> block = new ArrayList<>();
+        ByteBuffer parity = null;
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer frame = chunkFrame((long) i * CHUNK_SIZE, CHUNK_SIZE - i * 100, 0);
+            block.add(frame);
+            parity = encoder.add((long) i * CHUNK_SIZE, frame, LOSS_RATE);
+        }
+        assertNotNull(parity);
+
+        deliver(decoder, bitmap, block.get(0));
+        deliver(decoder, bitmap, block.get(1));
+        assertNull(decoder.onParity(parityPayload(parity), bitmap));
+        // Member 2 is lost; member 3 completes the block
+        assertRebuilt(block.get(2), decoder.onChunk(Envelope.offset(block.get(3)), payload(block.get(3)), bitmap));
+    }
+
+    @Test
+    public void twoHoles_waitForAResend() {
+        ParityEncoder encoder = new ParityEncoder(1, CHUNK_SIZE);
+        ParityDecoder decoder = new ParityDecoder();
+        ChunkBitmap bitmap = new ChunkBitmap(4L * CHUNK_SIZE);
+        List<ByteBuffer> block = new ArrayList<>();
+        ByteBuffer parity = null;
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer frame = chunkFrame((long) i * CHUNK_SIZE, CHUNK_SIZE, 0);
+            block.add(frame);
+            parity = encoder.add((long) i * CHUNK_SIZE, frame, LOSS_RATE);
+        }
+
+        deliver(decoder, bitmap, block.get(0));
+        deliver(decoder, bitmap, block.get(3));
+        assertNull(decoder.onParity(parityPayload(parity), bitmap));
+
+        // The resend of one hole leaves a single one, which parity can now fill
+        assertRebuilt(block.get(2), decoder.onChunk(Envelope.offset(block.get(1)), payload(block.get(1)), bitmap));
+    }
+
+    @Test
+    public void partialBlock_flushedAtTheTail() {
+        ParityEncoder encoder = new ParityEncoder(1, CHUNK_SIZE);
+        ParityDecoder decoder = new ParityDecoder();
+        long fileSize = 2L * CHUNK_SIZE + 100;
+        ChunkBitmap bitmap = new ChunkBitmap(fileSize);
+        ByteBuffer first = chunkFrame(0, CHUNK_SIZE, 0);
+        ByteBuffer second = chunkFrame(CHUNK_SIZE, CHUNK_SIZE, 0);
+        ByteBuffer tail = chunkFrame(2L * CHUNK_SIZE, 100, 0);
+        assertNull(encoder.add(0, first, LOSS_RATE));
+        assertNull(encoder.add(CHUNK_SIZE, second, LOSS_RATE));
+        assertNull(encoder.add(2L * CHUNK_SIZE, tail, LOSS_RATE));
+        ByteBuffer parity = encoder.flush();
+        assertEquals(3, Envelope.seq(parity));
+
+        deliver(decoder, bitmap, first);
+        deliver(decoder, bitmap, second);
+        assertRebuilt(tail, decoder.onParity(parityPayload(parity), bitmap));
+    }
+
+    @Test
+    public void compressedMember_shorterThanAUnit_isStillRebuilt() {
+        ParityEncoder encoder = new ParityEncoder(1, CHUNK_SIZE);
+        ParityDecoder decoder = new ParityDecoder();
+        ChunkBitmap bitmap = new ChunkBitmap(4L * CHUNK_SIZE);
+        List<ByteBuffer> block = new ArrayList<>();
+        ByteBuffer parity = null;
+        for (int i = 0; i < 4; i++) {
+            // A chunk of four units deflated to a few hundred bytes
+            ByteBuffer frame = chunkFrame((long) i * CHUNK_SIZE, 300 + i, Envelope.FLAG_COMPRESSED);
+            block.add(frame);
+            parity = encoder.add((long) i * CHUNK_SIZE, frame, LOSS_RATE);
+        }
+
+        deliver(decoder, bitmap, block.get(0));
+        deliver(decoder, bitmap, block.get(2));
+        deliver(decoder, bitmap, block.get(3));
+        assertRebuilt(block.get(1), decoder.onParity(parityPayload(parity), bitmap));
+    }
+
+    @Test
+    public void evictedMember_leavesTheBlockToRetransmission() {
+        ParityEncoder encoder = new ParityEncoder(1, CHUNK_SIZE);
+        ParityDecoder decoder = new ParityDecoder();
+        int fillers = 8 * 1024 * 1024 / CHUNK_SIZE + 1;
+        ChunkBitmap bitmap = new ChunkBitmap((4L + fillers) * CHUNK_SIZE);
+        List<ByteBuffer> block = new ArrayList<>();
+        ByteBuffer parity = null;
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer frame = chunkFrame((long) i * CHUNK_SIZE, CHUNK_SIZE, 0);
+            block.add(frame);
+            parity = encoder.add((long) i * CHUNK_SIZE, frame, LOSS_RATE);
+        }
+        deliver(decoder, bitmap, block.get(0));
+        deliver(decoder, bitmap, block.get(2));
+        deliver(decoder, bitmap, block.get(3));
+
+        // Later chunks push the retained copies past MAX_RETAINED_BYTES, oldest first
+        for (int i = 0; i < fillers; i++) {
+            long offset = (4L + i) * CHUNK_SIZE;
+            assertNull(decoder.onChunk(offset, payload(chunkFrame(offset, CHUNK_SIZE, Envelope.FLAG_FEC)), bitmap));
+        }
+        assertNull(decoder.onParity(parityPayload(parity), bitmap));
+    }
+
+    @Test
+    public void oversizedMember_isNotRebuilt() {
+        ParityDecoder decoder = new ParityDecoder();
+        ChunkBitmap bitmap = new ChunkBitmap(2L * CHUNK_SIZE);
+        ByteBuffer layout = ByteBuffer.allocate(2 + 2 * 14 + 10);
+        layout.putShort((short) 2);
+        layout.putLong(0).putInt(10).putShort((short) Envelope.FLAG_FEC);
+        layout.putLong(CHUNK_SIZE).putInt(CHUNK_SIZE).putShort((short) Envelope.FLAG_FEC);
+        layout.put(new byte[10]).flip();
+        assertNull(decoder.onChunk(0, new byte[10], bitmap));
+        assertNull(decoder.onParity(layout, bitmap));
+    }
+
+    private void deliver(ParityDecoder decoder, ChunkBitmap bitmap, ByteBuffer frame) {
+        assertNull(decoder.onChunk(Envelope.offset(frame), payload(frame), bitmap));
+        bitmap.markRange(Envelope.offset(frame), CHUNK_SIZE);
+    }
+
+    private ByteBuffer chunkFrame(long offset, int payloadLength, int flags) {
+        byte[] payload = new byte[payloadLength];
+        random.nextBytes(payload);
+        return Envelope.wrap(Envelope.TYPE_CHUNK, flags, 1, 0, offset, payload);
+    }
+
+    private static byte[] payload(ByteBuffer frame) {
+        ByteBuffer data = frame.duplicate();
+        Envelope.skipHeader(data);
+        byte[] payload = new byte[data.remaining()];
+        data.get(payload);
+        return payload;
+    }
+
+    private static ByteBuffer parityPayload(ByteBuffer parity) {
+        ByteBuffer data = parity.duplicate();
+        assertEquals(Envelope.TYPE_PARITY, Envelope.type(data));
+        Envelope.skipHeader(data);
+        return data;
+    }
+
+    private static void assertRebuilt(ByteBuffer expected, ParityDecoder.Rebuilt rebuilt) {
+        assertNotNull(rebuilt);
+        assertEquals(Envelope.offset(expected), rebuilt.offset);
+        assertEquals(Envelope.flags(expected), rebuilt.flags);
+        assertTrue("Rebuilt ciphertext differs", Arrays.equals(payload(expected), rebuilt.ciphertext));
+    }
+}
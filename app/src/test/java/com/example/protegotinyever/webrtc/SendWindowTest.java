@@ -0,0 +1,179 @@
+package com.example.protegotinyever.webrtc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SendWindowTest {
+    private static final int UNIT = ChunkSizer.UNIT;
+
+    @Test
+    public void sack_acksByOffsetAndBitmap() {
+        SendWindow window = new SendWindow(0);
+        SendWindow.InFlight first = send(window, 0, UNIT);
+        SendWindow.InFlight second = send(window, UNIT, UNIT);
+        SendWindow.InFlight third = send(window, 2L * UNIT, 2 * UNIT);
+        SendWindow.InFlight fourth = send(window, 4L * UNIT, UNIT);
+
+        // Everything below UNIT, then the units from 2 * UNIT: bit 0 is unit 1, so units 2 and 3 are bits 1 and 2
+        window.onSack(UNIT, 0, bits(1, 2));
+        assertEquals(UNIT, window.getAckedOffset());
+        assertEquals(offsets(first, third), offsets(takeAcked(window)));
+        assertTrue(takeAcked(window).isEmpty());
+
+        // A bitmap that ends before the chunk does not ack it
+        window.onSack(UNIT, 0, ByteBuffer.allocate(0));
+        assertTrue(takeAcked(window).isEmpty());
+
+        window.onSack(UNIT, 0, bits(3));
+        assertEquals(offsets(fourth), offsets(takeAcked(window)));
+
+        window.onSack(5L * UNIT, 0, ByteBuffer.allocate(0));
+        assertEquals(5L * UNIT, window.getAckedOffset());
+        assertEquals(offsets(second), offsets(takeAcked(window)));
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void sack_readsBitmapFromItsPosition() {
+        SendWindow window = new SendWindow(0);
+        send(window, 0, UNIT);
+        SendWindow.InFlight second = send(window, UNIT, UNIT);
+
+        ByteBuffer sack = ByteBuffer.allocate(Envelope.HEADER_SIZE + 1);
+        sack.position(Envelope.HEADER_SIZE);
+        sack.put(Envelope.HEADER_SIZE, (byte) 0b10);
+        window.onSack(0, 0, sack);
+        assertEquals(offsets(second), offsets(takeAcked(window)));
+    }
+
+    @Test
+    public void resent_afterAck_isRefused() {
+        SendWindow window = new SendWindow(0);
+        SendWindow.InFlight chunk = send(window, 0, UNIT);
+        assertTrue(window.onResent(chunk));
+
+        window.onSack(UNIT, 0, ByteBuffer.allocate(0));
+        List<SendWindow.InFlight> acked = takeAcked(window);
+        assertEquals(1, acked.size());
+        assertSame(chunk, acked.get(0));
+        assertFalse(window.onResent(chunk));
+    }
+
+    @Test
+    public void reorderThreshold_declaresLoss() {
+        SendWindow window = new SendWindow(0);
+        List<SendWindow.InFlight> chunks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            chunks.add(send(window, (long) i * UNIT, UNIT));
+        }
+
+        // Seven later chunks overtaking the first is still reordering
+        window.onSack(0, 0, bits(1, 2, 3, 4, 5, 6, 7));
+        assertTrue(window.takeLost().isEmpty());
+
+        window.onSack(0, 0, bits(1, 2, 3, 4, 5, 6, 7, 8));
+        List<SendWindow.InFlight> lost = window.takeLost();
+        assertEquals(offsets(chunks.get(0)), offsets(lost));
+        assertTrue(window.lossRate() > 0);
+
+        // Resent, it starts over behind everything sent so far
+        assertTrue(window.onResent(lost.get(0)));
+        window.onSack(0, 0, bits(1, 2, 3, 4, 5, 6, 7, 8, 9));
+        assertTrue(window.takeLost().isEmpty());
+    }
+
+    @Test
+    public void reorderThreshold_waitsLongerForParityProtectedChunks() {
+        SendWindow window = new SendWindow(0);
+        ByteBuffer frame = frame(0);
+        Envelope.setFlags(frame, Envelope.FLAG_FEC);
+        window.onSent(0, UNIT, frame);
+        for (int i = 1; i < 10; i++) {
+            send(window, (long) i * UNIT, UNIT);
+        }
+        window.onSack(0, 0, bits(1, 2, 3, 4, 5, 6, 7, 8, 9));
+        assertTrue(window.takeLost().isEmpty());
+    }
+
+    @Test
+    public void retransmissionTimeout_backsOff() {
+        long second = 1_000_000_000L;
+        assertEquals(second, SendWindow.retransmissionTimeout(0, 0));
+        assertEquals(2 * second, SendWindow.retransmissionTimeout(0, 1));
+        assertEquals(4 * second, SendWindow.retransmissionTimeout(0, 2));
+        assertEquals(8 * second, SendWindow.retransmissionTimeout(0, 3));
+        assertEquals(8 * second, SendWindow.retransmissionTimeout(0, 10));
+        // Four RTTs once that is above the minimum, still capped
+        assertEquals(2 * second, SendWindow.retransmissionTimeout(second / 2, 0));
+        assertEquals(8 * second, SendWindow.retransmissionTimeout(3 * second, 1));
+    }
+
+    @Test
+    public void timeout_declaresEverythingInFlightLost() throws Exception {
+        SendWindow window = new SendWindow(0);
+        SendWindow.InFlight first = send(window, 0, UNIT);
+        SendWindow.InFlight second = send(window, UNIT, UNIT);
+
+        window.await(1100, 0);
+        List<SendWindow.InFlight> lost = window.takeLost();
+        assertEquals(offsets(first, second), offsets(lost));
+
+        // The next timeout is twice as long, so an immediate wait declares nothing
+        for (SendWindow.InFlight chunk : lost) {
+            assertTrue(window.onResent(chunk));
+        }
+        window.await(1, 0);
+        assertTrue(window.takeLost().isEmpty());
+    }
+
+    @Test
+    public void hasRoom_limitsBytesInFlight() {
+        SendWindow window = new SendWindow(0);
+        assertTrue(window.hasRoom(Integer.MAX_VALUE)); // An empty window always takes one chunk
+        send(window, 0, (int) SendWindow.MAX_IN_FLIGHT_BYTES - UNIT);
+        assertTrue(window.hasRoom(UNIT));
+        assertFalse(window.hasRoom(UNIT + 1));
+    }
+
+    private static SendWindow.InFlight send(SendWindow window, long offset, int length) {
+        return window.onSent(offset, length, frame(offset));
+    }
+
+    private static ByteBuffer frame(long offset) {
+        ByteBuffer frame = ByteBuffer.allocate(Envelope.HEADER_SIZE);
+        Envelope.putHeader(frame, Envelope.TYPE_CHUNK, 0, 1, 0, offset);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer bits(int... set) {
+        byte[] bits = new byte[4];
+        for (int bit : set) {
+            bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+        return ByteBuffer.wrap(bits);
+    }
+
+    private static List<SendWindow.InFlight> takeAcked(SendWindow window) {
+        List<SendWindow.InFlight> acked = new ArrayList<>();
+        window.takeAcked(acked);
+        return acked;
+    }
+
+    private static List<Long> offsets(SendWindow.InFlight... chunks) {
+        List<Long> offsets = new ArrayList<>();
+        for (SendWindow.InFlight chunk : chunks) {
+            offsets.add(chunk.offset);
+        }
+        return offsets;
+    }
+
+    private static List<Long> offsets(List<SendWindow.InFlight> chunks) {
+        return offsets(chunks.toArray(new SendWindow.InFlight[0]));
+    }
+}
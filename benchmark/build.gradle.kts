@@ -0,0 +1,40 @@
+// JVM-only JMH benchmarks for the crypto and wire code the app shares with plain Java.
+// Run with ./gradlew :benchmark:jmh; results land in build/results/jmh/results.json.
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// The benchmarked classes are compiled straight from the app, so the numbers are for the shipped code
+sourceSets {
+    main {
+        java {
+            setSrcDirs(listOf("../app/src/main/java"))
+            include(
+                "com/example/protegotinyever/util/MessageEncryptor.java",
+                "com/example/protegotinyever/util/SessionCipher.java",
+                "com/example/protegotinyever/webrtc/Envelope.java"
+            )
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.bcprov.jdk18on)
+    jmh(libs.jmh.core)
+    jmhAnnotationProcessor(libs.jmh.generator.annprocess)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
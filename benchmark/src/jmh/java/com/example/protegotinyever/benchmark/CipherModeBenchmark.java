@@ -0,0 +1,95 @@
+package com.example.protegotinyever.benchmark;
+
+import com.example.protegotinyever.util.MessageEncryptor;
+
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The chunk ciphers side by side, sealing in place the way FileSender does, against
+// the unauthenticated ChaCha20 then AES-CTR pair the app used before.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CipherModeBenchmark {
+    @Param({"AES_GCM", "CHACHA20_POLY1305", "LEGACY_CHACHA20_AES_CTR"})
+    public String mode;
+
+    @Param({"64", "1024", "16384", "65536", "262144"})
+    public int size;
+
+    private byte[] buffer;
+    private byte[] sealed;
+    private long position;
+    private MessageEncryptor.TransferCipher transferCipher;
+    private ChaChaEngine chacha;
+    private KeyParameter chachaKey;
+    private byte[] chachaNonce;
+    private Cipher aesCtr;
+    private SecretKeySpec aesKey;
+    private IvParameterSpec aesIv;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(size);
+        buffer = new byte[size + MessageEncryptor.TAG_LENGTH];
+        random.nextBytes(buffer);
+        if (mode.startsWith("LEGACY")) {
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            chacha = new ChaChaEngine();
+            chachaKey = new KeyParameter(key);
+            chachaNonce = new byte[8];
+            random.nextBytes(key);
+            aesCtr = Cipher.getInstance("AES/CTR/NoPadding");
+            aesKey = new SecretKeySpec(key, "AES");
+            aesIv = new IvParameterSpec(new byte[16]);
+            return;
+        }
+        byte[] keyMaterial = new byte[MessageEncryptor.TransferCipher.KEY_MATERIAL_LENGTH];
+        random.nextBytes(keyMaterial);
+        keyMaterial[0] = mode.equals("AES_GCM") ? MessageEncryptor.CIPHER_AES_GCM : MessageEncryptor.CIPHER_CHACHA20_POLY1305;
+        transferCipher = MessageEncryptor.TransferCipher.fromKeyMaterial(keyMaterial);
+        sealed = new byte[size + MessageEncryptor.TAG_LENGTH];
+        transferCipher.encrypt(0, buffer, 0, size, sealed, 0);
+    }
+
+    // The AEAD modes seal a new position each call, as a transfer does, so no nonce repeats.
+    @Benchmark
+    public int encrypt() throws Exception {
+        if (chacha != null) {
+            chacha.init(true, new ParametersWithIV(chachaKey, chachaNonce));
+            chacha.processBytes(buffer, 0, size, buffer, 0);
+            aesCtr.init(Cipher.ENCRYPT_MODE, aesKey, aesIv);
+            return aesCtr.doFinal(buffer, 0, size, buffer, 0);
+        }
+        position += size;
+        return transferCipher.encrypt(position, buffer, 0, size, buffer, 0);
+    }
+
+    @Benchmark
+    public int decrypt() throws Exception {
+        if (chacha != null) {
+            aesCtr.init(Cipher.DECRYPT_MODE, aesKey, aesIv);
+            aesCtr.doFinal(buffer, 0, size, buffer, 0);
+            chacha.init(false, new ParametersWithIV(chachaKey, chachaNonce));
+            return chacha.processBytes(buffer, 0, size, buffer, 0);
+        }
+        // Out of place, so the sealed copy stays intact for the next call
+        return transferCipher.decrypt(0, sealed, 0, sealed.length, buffer, 0);
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.protegotinyever.benchmark;
+
+import com.example.protegotinyever.webrtc.Envelope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Chunk header build and parse as WebRTCClient does it, on a heap frame like FileSender's
+// and a direct buffer like the ones the data channel delivers.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvelopeBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private ByteBuffer frame;
+    private ByteBuffer received;
+    private int seq;
+
+    @Setup
+    public void setUp() {
+        frame = ByteBuffer.allocate(Envelope.HEADER_SIZE + CHUNK_SIZE);
+        received = ByteBuffer.allocateDirect(Envelope.HEADER_SIZE + CHUNK_SIZE);
+        Envelope.putHeader(received, Envelope.TYPE_CHUNK, Envelope.FLAG_FEC, 7, 42, 42L * CHUNK_SIZE);
+        received.clear();
+    }
+
+    @Benchmark
+    public ByteBuffer buildHeader() {
+        frame.clear();
+        seq++;
+        Envelope.putHeader(frame, Envelope.TYPE_CHUNK, 0, 7, seq, (long) seq * CHUNK_SIZE);
+        frame.position(0);
+        Envelope.setFlags(frame, Envelope.FLAG_COMPRESSED);
+        return frame;
+    }
+
+    @Benchmark
+    public void parseHeader(Blackhole blackhole) {
+        ByteBuffer data = received;
+        if (!Envelope.isEnvelope(data)) {
+            throw new IllegalStateException("Not an envelope");
+        }
+        blackhole.consume(Envelope.type(data));
+        blackhole.consume(Envelope.flags(data));
+        blackhole.consume(Envelope.streamId(data));
+        blackhole.consume(Envelope.seq(data));
+        blackhole.consume(Envelope.offset(data));
+        blackhole.consume(Envelope.payloadLength(data));
+    }
+
+    @Benchmark
+    public ByteBuffer wrapControl() {
+        return Envelope.control(Envelope.TYPE_SACK, 7, 0, (long) seq * CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.protegotinyever.benchmark;
+
+import com.example.protegotinyever.util.MessageEncryptor;
+import com.example.protegotinyever.util.SessionCipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Message path: the self-keyed format peers fall back to, and a session message sealed
+// by one side and opened by the other.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageEncryptorBenchmark {
+    @Param({"64", "1024", "16384", "65536", "262144"})
+    public int size;
+
+    private byte[] plaintext;
+    private byte[] sealed;
+    private SessionCipher sender;
+    private SessionCipher receiver;
+    private ByteBuffer sessionFrame;
+    private ByteBuffer sessionPlaintext;
+
+    @Setup
+    public void setUp() throws Exception {
+        plaintext = new byte[size];
+        new Random(size).nextBytes(plaintext);
+        sealed = MessageEncryptor.encryptData(plaintext).combinedData;
+
+        SessionCipher.Handshake ours = new SessionCipher.Handshake();
+        SessionCipher.Handshake theirs = new SessionCipher.Handshake();
+        sender = ours.complete(theirs.getPublicKey());
+        receiver = theirs.complete(ours.getPublicKey());
+        sessionFrame = ByteBuffer.allocate(SessionCipher.sealedLength(size));
+        sessionPlaintext = ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public byte[] encryptData() throws Exception {
+        return MessageEncryptor.encryptData(plaintext).combinedData;
+    }
+
+    @Benchmark
+    public byte[] decryptData() throws Exception {
+        return MessageEncryptor.decryptData(sealed);
+    }
+
+    @Benchmark
+    public int sessionRoundTrip() throws Exception {
+        sessionFrame.clear();
+        sender.encrypt(ByteBuffer.wrap(plaintext), sessionFrame);
+        sessionFrame.flip();
+        sessionPlaintext.clear();
+        return receiver.decrypt(sessionFrame, sessionPlaintext);
+    }
+}
@@ -22,3 +22,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "protegotinyever"
 include(":app")
+include(":benchmark")